@@ -57,7 +57,9 @@ import com.vaadin.ui.themes.ValoTheme;
 import componentwrappers.StandardTextField;
 import uicomponents.Styles.*;
 import control.IRegistrationController;
+import control.IdentifierReservations;
 import control.SampleCounter;
+import io.ProjectSampleCache;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 
 public class MCCView extends VerticalLayout implements IRegistrationView, IRegistrationController {
@@ -229,9 +231,7 @@ public class MCCView extends VerticalLayout implements IRegistrationView, IRegis
       @Override
       public void valueChange(ValueChangeEvent event) {
         if (!newProject.isEmpty())
-          counter = new SampleCounter(newProject.getValue());
-        for (Sample s : openbis.getSamplesOfProject("/" + mccSpace + "/" + newProject.getValue()))
-          counter.increment(s);
+          resetCounter(newProject.getValue());
         addSamples.setEnabled(allValid());
       }
     });
@@ -284,14 +284,13 @@ public class MCCView extends VerticalLayout implements IRegistrationView, IRegis
     entities = new ArrayList<Sample>();
     cases = new HashSet<String>();
     if (newProject.getValue().isEmpty())
-      counter = new SampleCounter((String) mccProjects.getValue());
+      resetCounter((String) mccProjects.getValue());
     else
-      counter = new SampleCounter(newProject.getValue());
+      resetCounter(newProject.getValue());
     String treatment = "";
     boolean wrongFormat = false;
-    for (Sample s : openbis.getSamplesWithParentsAndChildrenOfProjectBySearchService(
+    for (Sample s : ProjectSampleCache.Instance.getSamplesWithParentsAndChildren(openbis,
         "/" + mccSpace + "/" + (String) mccProjects.getValue())) {
-      counter.increment(s);
       String id = s.getProperties().get("Q_EXTERNALDB_ID");
       if (s.getSampleTypeCode().equals("Q_BIOLOGICAL_ENTITY")) {
         entities.add(s);
@@ -336,6 +335,20 @@ public class MCCView extends VerticalLayout implements IRegistrationView, IRegis
     existingPatients.sort(new Object[] {"ID", "timepoint"}, new boolean[] {true});
   }
 
+  /**
+   * Creates a counter for the chosen project, the project is only counted if its counters are
+   * missing or old
+   */
+  private void resetCounter(String project) {
+    if (counter != null)
+      counter.release();
+    counter = null;
+    if (project == null)
+      return;
+    IdentifierReservations.Instance.countIfNeeded(openbis, mccSpace, project);
+    counter = new SampleCounter(project);
+  }
+
   @SuppressWarnings("unchecked")
   private List<List<ISampleBean>> prepDefaultMCCSamples() {
     String timepoint = this.timepoint.getValue();
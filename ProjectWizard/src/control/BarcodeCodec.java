@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package control;
+
+/**
+ * Parses, validates, checksums, compares and increments QBiC barcodes (e.g. QABCD001AX: project
+ * code, three digit number, letter, checksum) by looking at their characters, without regular
+ * expressions or substrings. Barcodes can also be packed into a long whose natural order is the
+ * order of the barcodes: by project, then letter, then number.
+ *
+ * @author agent
+ *
+ */
+public final class BarcodeCodec {
+
+  public static final int LENGTH = 10;
+  // the letter after X is A again, Y and Z are not used for samples
+  public static final char LAST_LETTER = 'X';
+  public static final long INVALID = -1;
+  // numbers per letter, 001 to 999
+  public static final int NUMBERS_PER_LETTER = 999;
+  // positions of the barcodes of one project: letters 0-9 and A-X with 999 numbers each
+  public static final int POSITIONS = 34 * NUMBERS_PER_LETTER;
+
+  private static final int RADIX = 36;
+  private static final int NUMBERS = 1000;
+
+  private BarcodeCodec() {}
+
+  /**
+   * Checks if a code fits the QBiC barcode pattern Q[A-Z0-9]{4}[0-9]{3}[A-Z0-9]{2}
+   *
+   * @param code a code that may be a barcode
+   * @return true if the code is a QBiC barcode
+   */
+  public static boolean isValid(CharSequence code) {
+    if (code == null || code.length() != LENGTH || code.charAt(0) != 'Q')
+      return false;
+    for (int i = 1; i < 5; i++)
+      if (!isUpperOrDigit(code.charAt(i)))
+        return false;
+    for (int i = 5; i < 8; i++)
+      if (!isDigit(code.charAt(i)))
+        return false;
+    return isUpperOrDigit(code.charAt(8)) && isUpperOrDigit(code.charAt(9));
+  }
+
+  /**
+   * Computes the position-weighted checksum character of a code
+   *
+   * @param s the code without checksum
+   * @return checksum character
+   */
+  public static char checksum(CharSequence s) {
+    return checksum(s, 0, s.length());
+  }
+
+  /**
+   * Computes the position-weighted checksum character of a part of a code
+   *
+   * @param s the code
+   * @param from first index of the checksummed part
+   * @param to index after the checksummed part
+   * @return checksum character
+   */
+  public static char checksum(CharSequence s, int from, int to) {
+    int sum = 0;
+    for (int idx = from; idx < to; idx++)
+      sum += s.charAt(idx) * (idx - from + 1);
+    return mapToChar(sum % 34);
+  }
+
+  /**
+   * Maps a number from 0 to 33 to the checksum characters 0-9 and A-X
+   */
+  public static char mapToChar(int i) {
+    i += 48;
+    if (i > 57)
+      i += 7;
+    return (char) i;
+  }
+
+  /**
+   * @return true if the last character of the code is its correct checksum
+   */
+  public static boolean hasValidChecksum(CharSequence code) {
+    return isValid(code) && checksum(code, 0, LENGTH - 1) == code.charAt(LENGTH - 1);
+  }
+
+  /**
+   * Compares codes by project, letter and then number (999A comes before 001B). Codes that don't
+   * start with Q or contain ENTITY, and codes too short to be split, are compared
+   * lexicographically.
+   *
+   * @return negative, zero or positive like {@link String#compareTo(String)}
+   */
+  public static int compare(String c1, String c2) {
+    if (!c1.startsWith("Q") || c1.contains("ENTITY") || !c2.startsWith("Q")
+        || c2.contains("ENTITY") || c1.length() < 9 || c2.length() < 9)
+      return c1.compareTo(c2);
+    int res = compareRegion(c1, c2, 0, 5);
+    if (res != 0)
+      return res;
+    res = compareRegion(c1, c2, 8, 9);
+    if (res != 0)
+      return res;
+    return compareRegion(c1, c2, 5, 8);
+  }
+
+  /**
+   * Returns the code following this one: the number is incremented, after 999 the letter is
+   * incremented and the number starts at 001 again. The checksum is recomputed.
+   *
+   * @param code a 10 character sample code
+   * @return the next sample code
+   * @throws NumberFormatException if the number of the code is not made of three digits
+   */
+  public static String increment(String code) {
+    char[] next = new char[LENGTH];
+    code.getChars(0, 5, next, 0);
+    for (int i = 5; i < 8; i++)
+      if (!isDigit(code.charAt(i)))
+        throw new NumberFormatException("For input string: \"" + code.substring(5, 8) + "\"");
+    int num = (code.charAt(5) - '0') * 100 + (code.charAt(6) - '0') * 10 + code.charAt(7) - '0';
+    char letter = code.charAt(8);
+    num++;
+    if (num > 999) {
+      num = 1;
+      letter = incrementLetter(letter);
+    }
+    writeNumber(next, num);
+    next[8] = letter;
+    next[9] = checksum(next, 9);
+    return new String(next);
+  }
+
+  /**
+   * Increments an upper case letter, after X follows A
+   */
+  public static char incrementLetter(char c) {
+    return c == LAST_LETTER ? 'A' : (char) (c + 1);
+  }
+
+  /**
+   * Packs a barcode into a long. The order of packed barcodes is the order of
+   * {@link #compare(String, String)}. The checksum is not stored.
+   *
+   * @param code a QBiC barcode
+   * @return the packed code or {@link #INVALID} if the code is not a QBiC barcode
+   */
+  public static long pack(CharSequence code) {
+    if (!isValid(code))
+      return INVALID;
+    long project = 0;
+    for (int i = 1; i < 5; i++)
+      project = project * RADIX + toDigit(code.charAt(i));
+    int num = (code.charAt(5) - '0') * 100 + (code.charAt(6) - '0') * 10 + code.charAt(7) - '0';
+    return (project * RADIX + toDigit(code.charAt(8))) * NUMBERS + num;
+  }
+
+  /**
+   * @return the packed code following the given one, see {@link #increment(String)}
+   */
+  public static long incrementPacked(long packed) {
+    int num = (int) (packed % NUMBERS) + 1;
+    long rest = packed / NUMBERS;
+    if (num <= 999)
+      return rest * NUMBERS + num;
+    char letter = incrementLetter(toChar((int) (rest % RADIX)));
+    return ((rest / RADIX) * RADIX + toDigit(letter)) * NUMBERS + 1;
+  }
+
+  /**
+   * @return the number (1-999) of a packed code
+   */
+  public static int getNumber(long packed) {
+    return (int) (packed % NUMBERS);
+  }
+
+  /**
+   * @return the letter of a packed code
+   */
+  public static char getLetter(long packed) {
+    return toChar((int) ((packed / NUMBERS) % RADIX));
+  }
+
+  /**
+   * Creates the barcode of a packed code, including its checksum
+   */
+  public static String unpack(long packed) {
+    char[] code = new char[LENGTH];
+    long project = packed / NUMBERS / RADIX;
+    code[0] = 'Q';
+    for (int i = 4; i > 0; i--) {
+      code[i] = toChar((int) (project % RADIX));
+      project /= RADIX;
+    }
+    writeNumber(code, getNumber(packed));
+    code[8] = getLetter(packed);
+    code[9] = checksum(code, 9);
+    return new String(code);
+  }
+
+  /**
+   * Creates a barcode from its parts
+   *
+   * @param project project code, e.g. QABCD
+   * @param number number of the sample (1-999)
+   * @param letter letter of the sample
+   * @return barcode including checksum
+   */
+  public static String create(String project, int number, char letter) {
+    char[] code = new char[LENGTH];
+    project.getChars(0, 5, code, 0);
+    writeNumber(code, number);
+    code[8] = letter;
+    code[9] = checksum(code, 9);
+    return new String(code);
+  }
+
+  /**
+   * Returns the position of a barcode within its project. Positions count the barcodes of a project
+   * in the order of {@link #compare(String, String)}, A001 is followed by A002, A999 by B001.
+   *
+   * @param code a QBiC barcode
+   * @return the position or {@link #INVALID} if the code is not a QBiC barcode
+   */
+  public static int position(CharSequence code) {
+    if (!isValid(code))
+      return (int) INVALID;
+    int num = (code.charAt(5) - '0') * 100 + (code.charAt(6) - '0') * 10 + code.charAt(7) - '0';
+    return toDigit(code.charAt(8)) * NUMBERS_PER_LETTER + Math.max(num, 1) - 1;
+  }
+
+  /**
+   * Creates the barcode at a position of a project, see {@link #position(CharSequence)}
+   *
+   * @param project project code, e.g. QABCD
+   * @param position position of the barcode, smaller than {@link #POSITIONS}
+   * @return barcode including checksum
+   */
+  public static String create(String project, int position) {
+    return create(project, position % NUMBERS_PER_LETTER + 1,
+        toChar(position / NUMBERS_PER_LETTER));
+  }
+
+  /**
+   * @return position of the first barcode of a project, 001A
+   */
+  public static int firstPosition() {
+    return toDigit('A') * NUMBERS_PER_LETTER;
+  }
+
+  private static char checksum(char[] code, int to) {
+    int sum = 0;
+    for (int idx = 0; idx < to; idx++)
+      sum += code[idx] * (idx + 1);
+    return mapToChar(sum % 34);
+  }
+
+  private static void writeNumber(char[] code, int num) {
+    code[5] = (char) ('0' + num / 100);
+    code[6] = (char) ('0' + num / 10 % 10);
+    code[7] = (char) ('0' + num % 10);
+  }
+
+  private static int compareRegion(String c1, String c2, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int diff = c1.charAt(i) - c2.charAt(i);
+      if (diff != 0)
+        return diff;
+    }
+    return 0;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isUpperOrDigit(char c) {
+    return isDigit(c) || (c >= 'A' && c <= 'Z');
+  }
+
+  private static int toDigit(char c) {
+    return isDigit(c) ? c - '0' : c - 'A' + 10;
+  }
+
+  private static char toChar(int digit) {
+    return (char) (digit < 10 ? '0' + digit : 'A' + digit - 10);
+  }
+
+}
@@ -58,7 +58,9 @@ import com.vaadin.ui.ComboBox;
 import com.vaadin.ui.TabSheet.SelectedTabChangeEvent;
 import com.vaadin.ui.TabSheet.SelectedTabChangeListener;
 
+import io.AsyncDBManager;
 import io.DBManager;
+import io.ProjectSampleCache;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 import life.qbic.openbis.openbisclient.OpenBisClient;
 import sorters.SampleCodeComparator;
@@ -82,6 +84,7 @@ public class BarcodeController implements Observer {
   private WizardBarcodeView view;
   private IOpenBisClient openbis;
   private DBManager dbManager;
+  private AsyncDBManager asyncDBM;
   private BarcodeCreator creator;
   private Map<String, Experiment> experimentsMap;
 
@@ -120,6 +123,7 @@ public class BarcodeController implements Observer {
   public BarcodeController(IOpenBisClient openbis, BarcodeConfig bcConf, DBManager dbm) {
     this.openbis = openbis;
     this.dbManager = dbm;
+    this.asyncDBM = new AsyncDBManager(dbm);
     creator = new BarcodeCreator(bcConf);
   }
 
@@ -226,9 +230,10 @@ public class BarcodeController implements Observer {
         String space = view.getSpaceCode();
         if (space != null) {
           List<String> projects = new ArrayList<String>();
+          Map<String, String> names = asyncDBM.getProjectNamesOfSpace(space);
           for (Project p : openbis.getProjectsOfSpace(space)) {
             String code = p.getCode();
-            String name = dbManager.getProjectName("/" + space + "/" + code);
+            String name = names.get("/" + space + "/" + code);
             if (name != null && name.length() > 0) {
               if (name.length() >= 80)
                 name = name.substring(0, 80) + "...";
@@ -332,14 +337,14 @@ public class BarcodeController implements Observer {
   public void reactToProjectSelection(String project) {
     Map<Tuple, ExperimentBarcodeSummary> experiments =
         new HashMap<Tuple, ExperimentBarcodeSummary>();
-    view.setPrinters(dbManager.getPrintersForProject(project));
+    view.setPrinters(asyncDBM.getPrintersForProject(project));
 
     experimentsMap = new HashMap<String, Experiment>();
     String projectID = "/" + view.getSpaceCode() + "/" + project;
     for (Experiment e : openbis.getExperimentsForProject(projectID)) {
       experimentsMap.put(e.getIdentifier(), e);
     }
-    for (Sample s : openbis.getSamplesWithParentsAndChildrenOfProjectBySearchService(projectID)) {
+    for (Sample s : ProjectSampleCache.Instance.getSamplesWithParentsAndChildren(openbis, projectID)) {
       String type = s.getSampleTypeCode();
       if (barcodeSamples.contains(type) && Functions.isQbicBarcode(s.getCode())) {
 
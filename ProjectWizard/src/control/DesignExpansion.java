@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Creates the samples of one tier of an experimental design in parallel. The tier is split into
+ * partitions with a known number of samples each, e.g. the replicates of one combination of parent
+ * sample and conditions. Partitions are created by fork/join tasks and concatenated in the order of
+ * the partitions, so the result is the same as creating them one after another. Since the index of
+ * the first sample of each partition is known beforehand, identifiers like barcodes can be
+ * reserved before and handed to the partitions by index.
+ *
+ * @author agent
+ *
+ */
+public final class DesignExpansion {
+
+  // tiers with fewer samples are created by the calling thread
+  public static final int PARALLEL_THRESHOLD = 2000;
+  // samples created by one task before work is not split further
+  private static final int BLOCK = 500;
+
+  private DesignExpansion() {}
+
+  /**
+   * Creates the samples of one partition
+   *
+   * @param <T> type of the created samples
+   */
+  public interface Partition<T> {
+
+    /**
+     * @param partition number of the partition
+     * @param first index of the first sample of this partition in the tier
+     * @param target list the samples of the partition are added to, in order
+     */
+    void expand(int partition, int first, List<T> target);
+  }
+
+  /**
+   * @param sizes number of samples of each partition
+   * @return number of samples of all partitions
+   */
+  public static int count(int[] sizes) {
+    long res = 0;
+    for (int size : sizes)
+      res += size;
+    if (res > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Too many samples: " + res);
+    return (int) res;
+  }
+
+  /**
+   * Creates the samples of all partitions, in parallel if there are enough of them
+   *
+   * @param sizes number of samples of each partition
+   * @param partitions creates the samples of a partition, called concurrently
+   * @return samples of all partitions in the order of the partitions
+   */
+  public static <T> List<T> expand(int[] sizes, Partition<T> partitions) {
+    int total = count(sizes);
+    int[] offsets = new int[sizes.length + 1];
+    for (int i = 0; i < sizes.length; i++)
+      offsets[i + 1] = offsets[i] + sizes[i];
+    List<List<T>> blocks = new ArrayList<List<T>>(sizes.length);
+    for (int i = 0; i < sizes.length; i++)
+      blocks.add(null);
+    ExpansionTask<T> task =
+        new ExpansionTask<T>(sizes, offsets, 0, sizes.length, partitions, blocks);
+    if (total < PARALLEL_THRESHOLD)
+      task.expandAll();
+    else
+      // the common pool is owned by the JVM, so nothing is left running on redeploy
+      ForkJoinPool.commonPool().invoke(task);
+    List<T> res = new ArrayList<T>(total);
+    for (List<T> block : blocks)
+      if (block != null)
+        res.addAll(block);
+    return res;
+  }
+
+  private static class ExpansionTask<T> extends RecursiveAction {
+
+    private static final long serialVersionUID = 5381974236209871324L;
+
+    private final int[] sizes;
+    private final int[] offsets;
+    private final int from;
+    private final int to;
+    private final Partition<T> partitions;
+    // samples created by a task are stored at the index of its first partition
+    private final List<List<T>> blocks;
+
+    ExpansionTask(int[] sizes, int[] offsets, int from, int to, Partition<T> partitions,
+        List<List<T>> blocks) {
+      this.sizes = sizes;
+      this.offsets = offsets;
+      this.from = from;
+      this.to = to;
+      this.partitions = partitions;
+      this.blocks = blocks;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from < 2 || offsets[to] - offsets[from] <= BLOCK) {
+        expandAll();
+        return;
+      }
+      // split where half of the samples are created, so tasks get similar amounts of work
+      int half = offsets[from] + (offsets[to] - offsets[from]) / 2;
+      int lo = from + 1;
+      int hi = to - 1;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (offsets[mid] < half)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      invokeAll(new ExpansionTask<T>(sizes, offsets, from, lo, partitions, blocks),
+          new ExpansionTask<T>(sizes, offsets, lo, to, partitions, blocks));
+    }
+
+    void expandAll() {
+      List<T> block = new ArrayList<T>(offsets[to] - offsets[from]);
+      for (int p = from; p < to; p++) {
+        int before = block.size();
+        partitions.expand(p, offsets[p], block);
+        if (block.size() - before != sizes[p])
+          throw new IllegalStateException("Partition " + p + " created " + (block.size() - before)
+              + " instead of " + sizes[p] + " samples.");
+      }
+      synchronized (blocks) {
+        blocks.set(from, block);
+      }
+    }
+  }
+
+}
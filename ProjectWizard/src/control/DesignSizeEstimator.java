@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package control;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import model.TestSampleInformation;
+
+/**
+ * Computes the number of samples each tier of an experimental design will contain from the
+ * numbers of factor levels, the amounts set per combination of factor levels and the number of
+ * replicates, without creating any samples. Designs exceeding the configured limits of samples per
+ * tier or per design are not created. The limits are set with max.tier.samples and
+ * max.design.samples in the portlet configuration; the defaults allow a tier of 50000 samples.
+ *
+ * @author agent
+ *
+ */
+public class DesignSizeEstimator {
+
+  public static final long DEFAULT_MAX_TIER_SAMPLES = 50000;
+  public static final long DEFAULT_MAX_DESIGN_SAMPLES = 100000;
+
+  private final long maxTierSamples;
+  private final long maxDesignSamples;
+
+  /**
+   * @param maxTierSamples maximum number of samples of one tier, e.g. extracts
+   * @param maxDesignSamples maximum number of samples of all tiers of a design
+   */
+  public DesignSizeEstimator(long maxTierSamples, long maxDesignSamples) {
+    this.maxTierSamples = maxTierSamples;
+    this.maxDesignSamples = maxDesignSamples;
+  }
+
+  public long getMaxTierSamples() {
+    return maxTierSamples;
+  }
+
+  public long getMaxDesignSamples() {
+    return maxDesignSamples;
+  }
+
+  /**
+   * @param factorLists levels of each factor
+   * @return number of combinations of factor levels, see {@link FactorPermutations#size()}
+   */
+  public static long countPermutations(List<? extends List<?>> factorLists) {
+    long n = 1;
+    for (List<?> levels : factorLists)
+      n = multiply(n, levels.size());
+    return n;
+  }
+
+  /**
+   * Counts the biological entities of a design. Like when the entities are created, an amount set
+   * for a combination is also used for the following combinations without an amount.
+   *
+   * @param factorLists levels of each factor
+   * @param reps number of replicates of combinations that have no amount set
+   * @param amounts amounts of samples set per combination, by number of the combination starting
+   *        at 1
+   * @return number of entities
+   */
+  public static long countEntities(List<? extends List<?>> factorLists, int reps,
+      Map<Object, Integer> amounts) {
+    long permutations = countPermutations(factorLists);
+    long res = 0;
+    long last = 0;
+    long curReps = Math.max(0, reps);
+    for (Map.Entry<Long, Integer> amount : sortAmounts(amounts, permutations).entrySet()) {
+      long id = amount.getKey();
+      res = add(res, multiply(id - 1 - last, curReps));
+      curReps = Math.max(0, amount.getValue());
+      res = add(res, curReps);
+      last = id;
+    }
+    return add(res, multiply(permutations - last, curReps));
+  }
+
+  /**
+   * Counts the extracts of a design. Combinations of the extract factors are numbered over all
+   * entities, combinations without an amount set use the number of replicates.
+   *
+   * @param entities number of entities the extracts are created from
+   * @param factorLists levels of each extract factor
+   * @param reps number of replicates of combinations that have no amount set
+   * @param amounts amounts of samples set per combination, by number of the combination starting
+   *        at 1
+   * @return number of extracts
+   */
+  public static long countExtracts(long entities, List<? extends List<?>> factorLists, int reps,
+      Map<Object, Integer> amounts) {
+    long permutations = multiply(entities, countPermutations(factorLists));
+    long defaultReps = Math.max(0, reps);
+    long res = multiply(permutations, defaultReps);
+    for (Integer amount : sortAmounts(amounts, permutations).values())
+      res = add(res, Math.max(0, amount) - defaultReps);
+    return res;
+  }
+
+  /**
+   * Counts the test samples of a design, one per replicate of each analyte and extract
+   *
+   * @param extracts number of extracts, including pools
+   * @param analytes analytes and their replicates
+   * @return number of test samples
+   */
+  public static long countTests(long extracts, List<TestSampleInformation> analytes) {
+    long reps = 0;
+    for (TestSampleInformation analyte : analytes)
+      reps = add(reps, Math.max(0, analyte.getReplicates()));
+    return multiply(extracts, reps);
+  }
+
+  /**
+   * Checks the number of samples of a tier and of the whole design against the limits
+   *
+   * @param tierSamples number of samples of the tier that is created next
+   * @param designSamples number of samples of the design including this tier
+   * @return description of the exceeded limit or null if the design is within the limits
+   */
+  public String getLimitViolation(long tierSamples, long designSamples) {
+    if (tierSamples > maxTierSamples)
+      return "This step would create " + tierSamples + " samples, but at most " + maxTierSamples
+          + " samples can be created per step. Please reduce the number of samples.";
+    if (designSamples > maxDesignSamples)
+      return "This design would contain " + designSamples + " samples, but at most "
+          + maxDesignSamples + " samples can be created per design. "
+          + "Please reduce the number of samples.";
+    return null;
+  }
+
+  /**
+   * Throws an exception if the number of samples of a tier or of the whole design exceeds the
+   * limits. Used before samples are created, the message of the exception can be shown to the
+   * user.
+   *
+   * @param tierSamples number of samples of the tier that is created next
+   * @param designSamples number of samples of the design including this tier
+   */
+  public void checkLimits(long tierSamples, long designSamples) {
+    String violation = getLimitViolation(tierSamples, designSamples);
+    if (violation != null)
+      throw new IllegalStateException(violation);
+  }
+
+  /**
+   * @return description of the number of samples for the user
+   */
+  public static String describe(long tierSamples, long designSamples) {
+    String res = tierSamples + " samples will be created in this step";
+    if (designSamples != tierSamples)
+      res += ", " + designSamples + " in the whole design";
+    return res + ".";
+  }
+
+  /**
+   * Amounts of combinations that exist, sorted by the number of the combination
+   */
+  private static TreeMap<Long, Integer> sortAmounts(Map<Object, Integer> amounts,
+      long permutations) {
+    TreeMap<Long, Integer> res = new TreeMap<Long, Integer>();
+    for (Map.Entry<Object, Integer> amount : amounts.entrySet()) {
+      if (amount.getKey() instanceof Number && amount.getValue() != null) {
+        long id = ((Number) amount.getKey()).longValue();
+        if (id >= 1 && id <= permutations)
+          res.put(id, amount.getValue());
+      }
+    }
+    return res;
+  }
+
+  // numbers of samples are capped instead of overflowing, they are far above any limit anyway.
+  // Negative amounts create no samples, like when samples are created.
+  private static long multiply(long a, long b) {
+    if (a == 0 || b == 0)
+      return 0;
+    if (a > Long.MAX_VALUE / b)
+      return Long.MAX_VALUE;
+    return a * b;
+  }
+
+  private static long add(long a, long b) {
+    long res = a + b;
+    if (b > 0 && res < a)
+      return Long.MAX_VALUE;
+    return res;
+  }
+
+}
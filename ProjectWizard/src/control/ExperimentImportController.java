@@ -17,11 +17,13 @@ package control;
 
 import java.io.File;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -64,11 +66,11 @@ import com.vaadin.ui.TextField;
 import com.vaadin.ui.Upload.FinishedEvent;
 import com.vaadin.ui.Upload.FinishedListener;
 
-import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Experiment;
 import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Project;
 import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
 import io.DBManager;
 import io.DBVocabularies;
+import io.ProjectSampleCache;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 
 
@@ -95,9 +97,7 @@ public class ExperimentImportController implements IRegistrationController {
   private IOpenBisClient openbis;
   private DBManager dbm;
   private DBVocabularies vocabs;
-  private int firstFreeExperimentID;
-  private int firstFreeEntityID;
-  private String firstFreeBarcode;
+  private IdentifierReservation identifiers;
   private String nextBarcode;
   Map<String, String> extCodeToBarcode;
 
@@ -406,14 +406,7 @@ public class ExperimentImportController implements IRegistrationController {
           projectInfo = projectInfoComponent.getProjectInfo();
           String space = questionaire.getSpaceCode();
           String project = questionaire.getProjectCode();
-          try {
-            countExistingOpenbisEntities(space, project);
-          } catch (TooManySamplesException e1) {
-            // TODO Auto-generated catch block
-            overflow = true;
-          }
-
-          int entityNum = firstFreeEntityID;
+          countExistingOpenbisEntities(space, project);
           nextBarcode = null;
 
           List<List<ISampleBean>> processed = prep.getProcessed();
@@ -440,15 +433,14 @@ public class ExperimentImportController implements IRegistrationController {
                 Map<String, Object> props = t.getMetadata();
                 switch (t.getType()) {
                   case "Q_BIOLOGICAL_ENTITY":
-                    code = project + "ENTITY-" + entityNum;
+                    code = identifiers.nextEntity();
                     String newVal = questionaire.getVocabularyLabelForValue("Species",
                         props.get("Q_NCBI_ORGANISM"));
                     props.put("Q_NCBI_ORGANISM", taxMap.get(newVal));
-                    entityNum++;
                     break;
                   case "Q_BIOLOGICAL_SAMPLE":
                     try {
-                      incrementOrCreateBarcode(project);
+                      incrementOrCreateBarcode();
                     } catch (TooManySamplesException e) {
                       overflow = true;
                     }
@@ -459,7 +451,7 @@ public class ExperimentImportController implements IRegistrationController {
                     break;
                   case "Q_TEST_SAMPLE":
                     try {
-                      incrementOrCreateBarcode(project);
+                      incrementOrCreateBarcode();
                     } catch (TooManySamplesException e) {
                       overflow = true;
                     }
@@ -479,7 +471,7 @@ public class ExperimentImportController implements IRegistrationController {
                     break;
                   case "Q_MHC_LIGAND_EXTRACT":
                     try {
-                      incrementOrCreateBarcode(project);
+                      incrementOrCreateBarcode();
                     } catch (TooManySamplesException e) {
                       overflow = true;
                     }
@@ -634,9 +626,7 @@ public class ExperimentImportController implements IRegistrationController {
   }
 
   private String getNextExperiment(String project) {
-    String res = project + "E" + firstFreeExperimentID;
-    firstFreeExperimentID++;
-    return res;
+    return identifiers.nextExperiment();
   }
 
   private String generateUnusedProjectCode() {
@@ -655,37 +645,27 @@ public class ExperimentImportController implements IRegistrationController {
   }
 
   /**
-   * Fetches context information like space and project and computes first unused IDs of samples and
-   * context. Also fills a map of existing secondary names and samples used later not to re-register
-   * 
-   * @throws TooManySamplesException
+   * Fetches context information like space and project and reserves unused IDs of samples and
+   * context, handing them out from the first reserved one again. Also fills a map of existing
+   * secondary names and samples used later not to re-register
    */
-  private void countExistingOpenbisEntities(String space, String project)
-      throws TooManySamplesException {
+  private void countExistingOpenbisEntities(String space, String project) {
     extIDToSample = new HashMap<String, Sample>();
-    firstFreeExperimentID = 1;
-    firstFreeEntityID = 1;
-    firstFreeBarcode = "";// TODO cleanup where not needed
     List<Sample> samples = new ArrayList<Sample>();
     if (openbis.projectExists(space, project)) {
-      samples.addAll(openbis
-          .getSamplesWithParentsAndChildrenOfProjectBySearchService("/" + space + "/" + project));
+      samples.addAll(ProjectSampleCache.Instance.getSamplesWithParentsAndChildren(openbis,
+          "/" + space + "/" + project));
     }
-    for (Experiment e : openbis.getExperimentsOfProjectByCode(project)) {
-      String code = e.getCode();
-      String[] split = code.split(project + "E");
-      if (code.startsWith(project + "E") && split.length > 1) {
-        int num = 0;
-        try {
-          num = Integer.parseInt(split[1]);
-        } catch (Exception e2) {
-        }
-        if (firstFreeExperimentID <= num)
-          firstFreeExperimentID = num + 1;
-      }
+    if (IdentifierReservations.Instance.needsCount(project))
+      IdentifierReservations.Instance.count(project,
+          openbis.getExperimentsOfProjectByCode(project), samples);
+    if (identifiers == null || !identifiers.getProject().equals(project.toUpperCase())) {
+      if (identifiers != null)
+        identifiers.release();
+      identifiers = new IdentifierReservation(project);
     }
+    identifiers.rewind();
     for (Sample s : samples) {
-      String code = s.getCode();
       // collect existing samples by their secondary name
       String secondaryName = s.getProperties().get("Q_SECONDARY_NAME");
       if (extIDToSample.containsKey(secondaryName))
@@ -693,42 +673,31 @@ public class ExperimentImportController implements IRegistrationController {
             + " was found as a secondary name for multiple samples. This might"
             + " lead to inconsistencies if new samples are to be attached to this secondary name.");
       extIDToSample.put(secondaryName, s);
-      if (Functions.isQbicBarcode(code)) {
-        if (Functions.compareSampleCodes(firstFreeBarcode, code) <= 0) {
-          firstFreeBarcode = Functions.incrementSampleCode(code);
-          String firstBarcode = project + "001A" + Functions.checksum(project + "001A");
-          if (firstBarcode.equals(firstFreeBarcode))
-            throw new TooManySamplesException();
-        }
-      } else if (s.getSampleTypeCode().equals(("Q_BIOLOGICAL_ENTITY"))) {
-        int num = Integer.parseInt(s.getCode().split("-")[1]);
-        if (num >= firstFreeEntityID)
-          firstFreeEntityID = num + 1;
-      }
     }
   }
 
-  private void incrementOrCreateBarcode(String project) throws TooManySamplesException {
-    String firstBarcode = project + "001A" + Functions.checksum(project + "001A");
-    if (nextBarcode == null) {
-      if (firstFreeBarcode.isEmpty()) {
-        String base = project + Functions.createCountString(1, 3) + "A";
-        firstFreeBarcode = base + Functions.checksum(base);
-      }
-      nextBarcode = firstFreeBarcode;
-    } else {
-      nextBarcode = Functions.incrementSampleCode(nextBarcode);
-      if (nextBarcode.equals(firstBarcode))
-        throw new TooManySamplesException();
-    }
+  private void incrementOrCreateBarcode() throws TooManySamplesException {
+    nextBarcode = identifiers.nextBarcode();
   }
 
   protected DesignType getImportType() {
     return view.getSelectedDesignOption();
   }
 
+  /**
+   * Gives back the reserved identifiers of the imported design, e.g. when the session ended
+   */
+  public void cleanUp() {
+    if (identifiers != null) {
+      identifiers.release();
+      identifiers = null;
+    }
+  }
+
   @Override
-  public void performPostRegistrationTasks(boolean success) {
+  public void performPostRegistrationTasks(boolean success) throws SQLException {
+    // identifiers of the registered samples stay reserved
+    cleanUp();
     if (success) {
       String space = null;
       String project = null;
@@ -769,24 +738,18 @@ public class ExperimentImportController implements IRegistrationController {
     }
   }
 
-  private void addPeopleAndProjectToDB(String projectIdentifier, String projectName) {
-    int projectID = dbm.addProjectToDB(projectIdentifier, projectName);
-    int investigatorID = -1;
-    int contactID = -1;
-    int managerID = -1;
+  private void addPeopleAndProjectToDB(String projectIdentifier, String projectName)
+      throws SQLException {
+    Map<String, Integer> roles = new LinkedHashMap<String, Integer>();
     Map<String, Integer> people = vocabs.getPeople();
     if (!questionaire.getPerson(PersonType.Investigator).equals(""))
-      investigatorID = people.get(questionaire.getPerson(PersonType.Investigator));
-    if (!questionaire.getPerson(PersonType.Manager).equals(""))
-      managerID = people.get(questionaire.getPerson(PersonType.Manager));
+      roles.put("PI", people.get(questionaire.getPerson(PersonType.Investigator)));
     if (!questionaire.getPerson(PersonType.Contact).equals(""))
-      contactID = people.get(questionaire.getPerson(PersonType.Contact));
-    if (investigatorID != -1)
-      dbm.addPersonToProject(projectID, investigatorID, "PI");
-    if (contactID != -1)
-      dbm.addPersonToProject(projectID, contactID, "Contact");
-    if (managerID != -1)
-      dbm.addPersonToProject(projectID, managerID, "Manager");
+      roles.put("Contact", people.get(questionaire.getPerson(PersonType.Contact)));
+    if (!questionaire.getPerson(PersonType.Manager).equals(""))
+      roles.put("Manager", people.get(questionaire.getPerson(PersonType.Manager)));
+    dbm.addProjectWithExperimentsToDB(projectIdentifier, projectName, roles,
+        new HashMap<String, Integer>());
   }
 
   private void registerHLATypings(String space) {
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package control;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Experiment;
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
+
+/**
+ * Number of samples per experiment, experiment type and sample type of one project, built in a
+ * single pass over the samples of the project instead of fetching the samples of every experiment.
+ *
+ * @author agent
+ *
+ */
+public class ExperimentSampleIndex {
+
+  private final String space;
+  private final String project;
+  private final List<Experiment> experiments;
+  private final Map<String, Integer> samplesPerExperiment = new HashMap<String, Integer>();
+  private final Map<String, Integer> samplesPerExperimentType = new HashMap<String, Integer>();
+  private final Map<String, Integer> samplesPerSampleType = new HashMap<String, Integer>();
+
+  public ExperimentSampleIndex(String space, String project, List<Experiment> experiments,
+      List<Sample> samples) {
+    this.space = space;
+    this.project = project;
+    this.experiments = new ArrayList<Experiment>(experiments);
+    Map<String, String> experimentTypes = new HashMap<String, String>();
+    for (Experiment e : experiments)
+      experimentTypes.put(e.getIdentifier(), e.getExperimentTypeCode());
+    for (Sample s : samples) {
+      String exp = s.getExperimentIdentifierOrNull();
+      if (exp != null) {
+        increment(samplesPerExperiment, exp);
+        String expType = experimentTypes.get(exp);
+        if (expType != null)
+          increment(samplesPerExperimentType, expType);
+      }
+      increment(samplesPerSampleType, s.getSampleTypeCode());
+    }
+  }
+
+  private void increment(Map<String, Integer> counts, String key) {
+    Integer old = counts.get(key);
+    counts.put(key, old == null ? 1 : old + 1);
+  }
+
+  private int get(Map<String, Integer> counts, String key) {
+    Integer res = counts.get(key);
+    return res == null ? 0 : res;
+  }
+
+  public boolean isIndexOf(String space, String project) {
+    return this.space.equals(space) && this.project.equals(project);
+  }
+
+  public List<Experiment> getExperiments() {
+    return experiments;
+  }
+
+  public int getNumberOfSamples(Experiment experiment) {
+    return get(samplesPerExperiment, experiment.getIdentifier());
+  }
+
+  public int getNumberOfSamplesInExperimentType(String experimentType) {
+    return get(samplesPerExperimentType, experimentType);
+  }
+
+  public int getNumberOfSamplesOfType(String sampleType) {
+    return get(samplesPerSampleType, sampleType);
+  }
+
+}
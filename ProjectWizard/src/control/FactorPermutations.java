@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package control;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * All combinations of the levels of several factors, in the order of a nested loop over the
+ * factors (the last factor changes fastest). Combinations are not stored: they are numbered like a
+ * mixed-radix number whose digits are the level indices, and are created one at a time while
+ * iterating, or on request by their number.
+ *
+ * @author agent
+ *
+ * @param <T> type of the factor levels
+ */
+public class FactorPermutations<T> implements Iterable<List<T>> {
+
+  private final List<List<T>> factors;
+  private final int[] radices;
+  private final long size;
+
+  /**
+   * @param factors the levels of each factor. A factor without levels leads to no combinations,
+   *        no factors at all to one empty combination.
+   */
+  public FactorPermutations(List<? extends List<T>> factors) {
+    this.factors = new ArrayList<List<T>>(factors);
+    this.radices = new int[factors.size()];
+    long n = 1;
+    for (int i = 0; i < radices.length; i++) {
+      radices[i] = this.factors.get(i).size();
+      n *= radices[i];
+    }
+    this.size = n;
+  }
+
+  /**
+   * @return number of combinations
+   */
+  public long size() {
+    return size;
+  }
+
+  public int getNumberOfFactors() {
+    return radices.length;
+  }
+
+  /**
+   * Computes the level indices of a combination
+   *
+   * @param index number of the combination, between 0 and {@link #size()}
+   * @param target array the indices are written to, one per factor
+   * @return the target array
+   */
+  public int[] indicesOf(long index, int[] target) {
+    if (index < 0 || index >= size)
+      throw new IndexOutOfBoundsException("Combination " + index + " of " + size);
+    for (int i = radices.length - 1; i >= 0; i--) {
+      target[i] = (int) (index % radices[i]);
+      index /= radices[i];
+    }
+    return target;
+  }
+
+  /**
+   * @param index number of the combination, between 0 and {@link #size()}
+   * @return the levels of the combination
+   */
+  public List<T> get(long index) {
+    return new Combination(indicesOf(index, new int[radices.length]));
+  }
+
+  /**
+   * Iterates over the level indices of all combinations. The same array is returned by every call
+   * of next, so it must be copied if it is kept.
+   *
+   * @return iterator over level indices
+   */
+  public Iterator<int[]> indexIterator() {
+    return new Iterator<int[]>() {
+      private final int[] digits = new int[radices.length];
+      private long next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public int[] next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        if (next > 0) {
+          int i = digits.length - 1;
+          while (++digits[i] == radices[i]) {
+            digits[i] = 0;
+            i--;
+          }
+        }
+        next++;
+        return digits;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Iterates over all combinations. Each combination is a small read-only view on the factor
+   * levels, no levels are copied.
+   */
+  @Override
+  public Iterator<List<T>> iterator() {
+    final Iterator<int[]> indices = indexIterator();
+    return new Iterator<List<T>>() {
+
+      @Override
+      public boolean hasNext() {
+        return indices.hasNext();
+      }
+
+      @Override
+      public List<T> next() {
+        return new Combination(indices.next().clone());
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private class Combination extends AbstractList<T> {
+    private final int[] levels;
+
+    Combination(int[] levels) {
+      this.levels = levels;
+    }
+
+    @Override
+    public T get(int factor) {
+      return factors.get(factor).get(levels[factor]);
+    }
+
+    @Override
+    public int size() {
+      return levels.length;
+    }
+  }
+
+}
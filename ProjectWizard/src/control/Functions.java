@@ -134,28 +134,7 @@ public class Functions {
   }
 
   public static int compareSampleCodes(String c1, String c2) {
-    if (!c1.startsWith("Q") || c1.contains("ENTITY") || !c2.startsWith("Q")
-        || c2.contains("ENTITY"))
-      return c1.compareTo(c2);
-    try {
-      // compares sample codes by projects, ending letters (999A --> 001B) and numbers (001A -->
-      // 002A)
-      int projCompare = c1.substring(0, 5).compareTo(c2.substring(0, 5));
-      int numCompare = c1.substring(5, 8).compareTo(c2.substring(5, 8));
-      int letterCompare = c1.substring(8, 9).compareTo(c2.substring(8, 9));
-      if (projCompare != 0)
-        return projCompare;
-      else {
-        if (letterCompare != 0)
-          return letterCompare;
-        else
-          return numCompare;
-      }
-    } catch (Exception e) {
-      logger.warn("Could not split code " + c1 + " or " + c2
-          + ". Falling back to primitive lexicographical comparison.");
-    }
-    return c1.compareTo(c2);
+    return BarcodeCodec.compare(c1, c2);
   }
 
   public static void printElapsedTime(long startTime) {
@@ -171,12 +150,7 @@ public class Functions {
    * @return the next letter in the alphabet relative to the input char
    */
   public static char incrementUppercase(char c) {
-    if (c == 'X')
-      return 'A';
-    else {
-      int charValue = c;
-      return (char) (charValue + 1);
-    }
+    return BarcodeCodec.incrementLetter(c);
   }
 
   /**
@@ -187,11 +161,11 @@ public class Functions {
    * @return the completed String with leading zeroes
    */
   public static String createCountString(int id, int length) {
-    String res = Integer.toString(id);
-    while (res.length() < length) {
-      res = "0" + res;
-    }
-    return res;
+    StringBuilder res = new StringBuilder(length);
+    String num = Integer.toString(id);
+    for (int i = num.length(); i < length; i++)
+      res.append('0');
+    return res.append(num).toString();
   }
 
   /**
@@ -203,16 +177,7 @@ public class Functions {
    * @return a new sample code
    */
   public static String incrementSampleCode(String code) {
-    String old = code.substring(5, 8);
-    String num = "";
-    int newNum = Integer.parseInt(old) + 1;
-    char letter = code.charAt(8);
-    if (newNum > 999) {
-      num = "001" + incrementUppercase(letter);
-    } else
-      num = createCountString(newNum, 3) + letter;
-    String res = code.substring(0, 5) + num;
-    return res + checksum(res);
+    return BarcodeCodec.increment(code);
   }
 
   /**
@@ -240,13 +205,7 @@ public class Functions {
    * @return Character representing the checksum of the input String.
    */
   public static char checksum(String s) {
-    int i = 1;
-    int sum = 0;
-    for (int idx = 0; idx <= s.length() - 1; idx++) {
-      sum += (((int) s.charAt(idx))) * i;
-      i += 1;
-    }
-    return mapToChar(sum % 34);
+    return BarcodeCodec.checksum(s);
   }
 
   /**
@@ -256,11 +215,7 @@ public class Functions {
    * @return char representing the input number
    */
   public static char mapToChar(int i) {
-    i += 48;
-    if (i > 57) {
-      i += 7;
-    }
-    return (char) i;
+    return BarcodeCodec.mapToChar(i);
   }
 
   public static float getPercentageStep(int max) {
@@ -308,8 +263,7 @@ public class Functions {
    * @return true if String is a QBiC barcode, false if not
    */
   public static boolean isQbicBarcode(String code) {
-    String pattern = "Q[A-Z0-9]{4}[0-9]{3}[A-Z0-9]{2}";
-    return code.matches(pattern);
+    return BarcodeCodec.isValid(code);
   }
 
   /**
@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package control;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import control.IdentifierReservations.Kind;
+import control.IdentifierReservations.Range;
+
+/**
+ * New identifiers of one project for one session, e.g. a wizard designing samples. Identifiers are
+ * reserved in blocks from {@link IdentifierReservations} when they are first needed. A session
+ * can start handing out its reserved identifiers again (e.g. when a design is recreated) and
+ * should release them when it is done, so unused identifiers can be reserved by the next session.
+ *
+ * @author agent
+ *
+ */
+public class IdentifierReservation {
+
+  public static final int BARCODE_BLOCK = 100;
+  public static final int ENTITY_BLOCK = 50;
+  public static final int EXPERIMENT_BLOCK = 5;
+
+  private final String project;
+  private final Sequence barcodes;
+  private final Sequence entities;
+  private final Sequence experiments;
+
+  /**
+   * @param project project code, its identifiers should be counted before, see
+   *        {@link IdentifierReservations#count(String, List, List)}
+   */
+  public IdentifierReservation(String project) {
+    this.project = project.substring(project.lastIndexOf("/") + 1).toUpperCase();
+    this.barcodes = new Sequence(Kind.BARCODE, BARCODE_BLOCK);
+    this.entities = new Sequence(Kind.ENTITY, ENTITY_BLOCK);
+    this.experiments = new Sequence(Kind.EXPERIMENT, EXPERIMENT_BLOCK);
+  }
+
+  public String getProject() {
+    return project;
+  }
+
+  /**
+   * @return the next reserved barcode
+   * @throws TooManySamplesException if the project has no barcodes left
+   */
+  public String nextBarcode() throws TooManySamplesException {
+    return barcodes.next();
+  }
+
+  /**
+   * Hands out several barcodes at once. Barcodes that are not reserved yet are reserved as one
+   * contiguous range if the project has no legacy barcodes in between.
+   *
+   * @param amount number of barcodes
+   * @return the next reserved barcodes, in order
+   * @throws TooManySamplesException if the project has not enough barcodes left
+   */
+  public String[] nextBarcodes(int amount) throws TooManySamplesException {
+    String[] res = new String[amount];
+    for (int i = 0; i < amount; i++)
+      res[i] = barcodes.next(amount - i);
+    return res;
+  }
+
+  /**
+   * @return the next reserved entity code, e.g. QABCDENTITY-1
+   */
+  public String nextEntity() {
+    try {
+      return entities.next();
+    } catch (TooManySamplesException e) {
+      // only barcodes run out
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the next reserved experiment code, e.g. QABCDE1
+   */
+  public String nextExperiment() {
+    try {
+      return experiments.next();
+    } catch (TooManySamplesException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Starts handing out the reserved identifiers of one kind from the first one again
+   *
+   * @param kind kind of identifiers
+   */
+  public void rewind(Kind kind) {
+    getSequence(kind).rewind();
+  }
+
+  /**
+   * Starts handing out all reserved identifiers from the first ones again
+   */
+  public void rewind() {
+    barcodes.rewind();
+    entities.rewind();
+    experiments.rewind();
+  }
+
+  /**
+   * Gives back all identifiers that were not handed out. Identifiers needed later are reserved
+   * again.
+   */
+  public void release() {
+    barcodes.release();
+    entities.release();
+    experiments.release();
+  }
+
+  private Sequence getSequence(Kind kind) {
+    switch (kind) {
+      case BARCODE:
+        return barcodes;
+      case ENTITY:
+        return entities;
+      default:
+        return experiments;
+    }
+  }
+
+  private class Sequence {
+    private final Kind kind;
+    private final int block;
+    private final List<Range> ranges = new ArrayList<Range>();
+    // index of the range and of the identifier in that range that are handed out next
+    private int range = 0;
+    private int used = 0;
+
+    Sequence(Kind kind, int block) {
+      this.kind = kind;
+      this.block = block;
+    }
+
+    String next() throws TooManySamplesException {
+      return next(1);
+    }
+
+    /**
+     * @param wanted number of identifiers that will be needed, including this one. If a new range
+     *        has to be reserved, it is large enough for all of them.
+     */
+    String next(int wanted) throws TooManySamplesException {
+      while (range < ranges.size() && used == ranges.get(range).size()) {
+        range++;
+        used = 0;
+      }
+      if (range == ranges.size())
+        ranges.add(IdentifierReservations.Instance.reserve(project, kind, Math.max(block, wanted)));
+      return ranges.get(range).get(used++);
+    }
+
+    void rewind() {
+      range = 0;
+      used = 0;
+    }
+
+    void release() {
+      // latest ranges first, so contiguous unused ranges can all be reserved again
+      for (int i = ranges.size() - 1; i >= 0; i--) {
+        int rangeUsed = 0;
+        if (i < range)
+          rangeUsed = ranges.get(i).size();
+        else if (i == range)
+          rangeUsed = used;
+        IdentifierReservations.Instance.release(ranges.get(i), rangeUsed);
+      }
+      ranges.clear();
+      rewind();
+    }
+  }
+
+}
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package control;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Experiment;
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
+import io.ProjectSampleCache;
+import life.qbic.openbis.openbisclient.IOpenBisClient;
+import logging.Log4j2Logger;
+
+/**
+ * Hands out new barcodes, entity numbers and experiment numbers of projects so that concurrent
+ * sessions never design samples with the same codes. The first unused identifiers of a project
+ * are counted once from its samples and experiments in openBIS and kept up to date with the codes
+ * registered by this application. After that, sessions designing samples reserve ranges of
+ * identifiers that no other session gets, without looking at the samples of the project again.
+ * When a project is counted again, identifiers that are neither registered nor held by a live
+ * reservation are handed out again, so ranges of sessions that ended without registering their
+ * design don't stay lost. Reservations of different projects only wait for each other if the
+ * projects share a lock stripe.
+ *
+ * @author agent
+ *
+ */
+public enum IdentifierReservations {
+  Instance;
+
+  public enum Kind {
+    BARCODE, ENTITY, EXPERIMENT
+  }
+
+  // projects are counted again after a while, in case samples were registered by other tools
+  public static final long DEFAULT_RECOUNT_MILLIS = 10 * 60 * 1000;
+  private static final int STRIPES = 16;
+  // barcodes registered with letter X before counting was introduced, they are not counted and
+  // not handed out again
+  private static final Set<String> LEGACY_BARCODES = new HashSet<String>(Arrays.asList(
+      "QMSHS001X3", "QMSHS002XB", "QMSHS003XJ", "QMSHS004XR", "QMSHS005X1", "QMSHS006X9"));
+
+  logging.Logger logger = new Log4j2Logger(IdentifierReservations.class);
+
+  private final Object[] stripes = new Object[STRIPES];
+  private final ConcurrentMap<String, Counters> projects =
+      new ConcurrentHashMap<String, Counters>();
+  private volatile long recountAfter = DEFAULT_RECOUNT_MILLIS;
+
+  private IdentifierReservations() {
+    for (int i = 0; i < STRIPES; i++)
+      stripes[i] = new Object();
+  }
+
+  /**
+   * First unused identifiers of a project. Barcodes are counted by their position in the project,
+   * see {@link BarcodeCodec#position(CharSequence)}
+   */
+  private static class Counters {
+    long barcode = BarcodeCodec.firstPosition();
+    long entity = 1;
+    long experiment = 1;
+    long counted = 0;
+    // first identifiers after the ones registered by this application, see registered()
+    Counters registered;
+    // ranges that were reserved and not released yet
+    final Set<Range> live = new HashSet<Range>();
+
+    long get(Kind kind) {
+      switch (kind) {
+        case BARCODE:
+          return barcode;
+        case ENTITY:
+          return entity;
+        default:
+          return experiment;
+      }
+    }
+
+    void set(Kind kind, long next) {
+      switch (kind) {
+        case BARCODE:
+          barcode = next;
+          break;
+        case ENTITY:
+          entity = next;
+          break;
+        default:
+          experiment = next;
+      }
+    }
+
+    /**
+     * Moves the counters behind an existing barcode, entity or experiment code of a project
+     */
+    void add(String project, String code) {
+      if (!code.startsWith(project) || LEGACY_BARCODES.contains(code))
+        return;
+      int position = BarcodeCodec.position(code);
+      if (position != BarcodeCodec.INVALID) {
+        barcode = Math.max(barcode, position + 1);
+        return;
+      }
+      String entityPrefix = project + "ENTITY-";
+      String expPrefix = project + "E";
+      try {
+        if (code.startsWith(entityPrefix))
+          entity = Math.max(entity, Long.parseLong(code.substring(entityPrefix.length())) + 1);
+        else if (code.startsWith(expPrefix))
+          experiment = Math.max(experiment, Long.parseLong(code.substring(expPrefix.length())) + 1);
+      } catch (NumberFormatException e) {
+        // e.g. MS runs or experiments with other names
+      }
+    }
+
+    void raise(Counters other) {
+      barcode = Math.max(barcode, other.barcode);
+      entity = Math.max(entity, other.entity);
+      experiment = Math.max(experiment, other.experiment);
+    }
+
+    /**
+     * Sets the counters to the counted ones, but not below identifiers registered by this
+     * application (they might not be visible yet) or held by live reservations
+     *
+     * @return true if a counter moved back, i.e. unused identifiers are handed out again
+     */
+    boolean recount(Counters found) {
+      found.raise(registered);
+      for (Range r : live)
+        found.set(r.kind, Math.max(found.get(r.kind), r.first + r.size));
+      boolean lowered =
+          found.barcode < barcode || found.entity < entity || found.experiment < experiment;
+      barcode = found.barcode;
+      entity = found.entity;
+      experiment = found.experiment;
+      return lowered;
+    }
+  }
+
+  /**
+   * A contiguous range of reserved identifiers of one project
+   */
+  public static class Range {
+    private final String project;
+    private final Kind kind;
+    private final long first;
+    private final int size;
+
+    private Range(String project, Kind kind, long first, int size) {
+      this.project = project;
+      this.kind = kind;
+      this.first = first;
+      this.size = size;
+    }
+
+    public String getProject() {
+      return project;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    public int size() {
+      return size;
+    }
+
+    /**
+     * @param i index of the identifier in this range, smaller than {@link #size()}
+     * @return barcode, entity code (e.g. QABCDENTITY-1) or experiment code (e.g. QABCDE1)
+     */
+    public String get(int i) {
+      if (i < 0 || i >= size)
+        throw new IndexOutOfBoundsException("Identifier " + i + " of " + size);
+      long id = first + i;
+      switch (kind) {
+        case BARCODE:
+          return BarcodeCodec.create(project, (int) id);
+        case ENTITY:
+          return project + "ENTITY-" + id;
+        default:
+          return project + "E" + id;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return kind + " " + get(0) + " to " + get(size - 1);
+    }
+  }
+
+  /**
+   * Sets the time after which a project has to be counted again
+   *
+   * @param millis time in milliseconds
+   */
+  public void setRecountAfter(long millis) {
+    this.recountAfter = millis;
+  }
+
+  /**
+   * @param project project code
+   * @return true if the identifiers of the project were never counted or counted too long ago
+   */
+  public boolean needsCount(String project) {
+    Counters c = projects.get(toKey(project));
+    if (c == null)
+      return true;
+    synchronized (stripe(toKey(project))) {
+      return System.currentTimeMillis() - c.counted > recountAfter;
+    }
+  }
+
+  /**
+   * Counts the first unused identifiers of a project. Identifiers that are registered or held by
+   * live reservations stay reserved, identifiers after them that were reserved by sessions that
+   * have ended are handed out again.
+   *
+   * @param project project code
+   * @param experiments experiments of the project in openBIS
+   * @param samples samples of the project in openBIS
+   */
+  public void count(String project, List<Experiment> experiments, List<Sample> samples) {
+    String key = toKey(project);
+    Counters found = new Counters();
+    for (Experiment e : experiments)
+      found.add(key, e.getCode());
+    for (Sample s : samples)
+      found.add(key, s.getCode());
+    boolean lowered;
+    synchronized (stripe(key)) {
+      Counters c = getCounters(key);
+      lowered = c.recount(found);
+      c.counted = System.currentTimeMillis();
+    }
+    logger.debug("Counted identifiers of " + key + " in " + samples.size() + " samples.");
+    if (lowered)
+      logger.info("Unused identifiers of " + key + " are handed out again.");
+  }
+
+  /**
+   * Counts a project if it was never counted or counted too long ago, using the cached samples of
+   * the project
+   *
+   * @param openbis client used to fetch experiments and samples
+   * @param space space of the project
+   * @param project project code
+   */
+  public void countIfNeeded(IOpenBisClient openbis, String space, String project) {
+    if (!needsCount(project))
+      return;
+    List<Sample> samples = new ArrayList<Sample>();
+    List<Experiment> experiments = new ArrayList<Experiment>();
+    if (openbis.projectExists(space, project)) {
+      samples.addAll(ProjectSampleCache.Instance.getSamplesWithParentsAndChildren(openbis,
+          "/" + space + "/" + project));
+      experiments.addAll(openbis.getExperimentsOfProjectByCode(project));
+    }
+    count(project, experiments, samples);
+  }
+
+  /**
+   * Updates the counters of a project with newly registered samples or experiments, so the project
+   * does not have to be counted again
+   *
+   * @param project project code
+   * @param codes codes of registered samples or experiments
+   */
+  public void registered(String project, Collection<String> codes) {
+    String key = toKey(project);
+    Counters found = new Counters();
+    for (String code : codes)
+      found.add(key, code);
+    synchronized (stripe(key)) {
+      Counters c = getCounters(key);
+      c.raise(found);
+      c.registered.raise(found);
+    }
+  }
+
+  /**
+   * Reserves the next unused identifiers of a project. If the project was never counted, its
+   * identifiers start at the first ones.
+   *
+   * @param project project code
+   * @param kind kind of identifiers
+   * @param amount wanted number of identifiers
+   * @return range of reserved identifiers, smaller than wanted if the project has fewer barcodes
+   *         left
+   * @throws TooManySamplesException if the project has no barcodes left
+   */
+  public Range reserve(String project, Kind kind, int amount) throws TooManySamplesException {
+    String key = toKey(project);
+    synchronized (stripe(key)) {
+      Counters c = getCounters(key);
+      long first = c.get(kind);
+      long end = first + amount;
+      if (kind.equals(Kind.BARCODE)) {
+        first = skipLegacyBarcodes(key, first);
+        end = Math.min(first + amount, BarcodeCodec.POSITIONS);
+        for (String legacy : LEGACY_BARCODES) {
+          int position = BarcodeCodec.position(legacy);
+          if (legacy.startsWith(key) && position >= first)
+            end = Math.min(end, position);
+        }
+      }
+      int size = (int) (end - first);
+      if (size <= 0)
+        throw new TooManySamplesException();
+      c.set(kind, first + size);
+      Range range = new Range(key, kind, first, size);
+      c.live.add(range);
+      return range;
+    }
+  }
+
+  /**
+   * Gives back the unused end of a range. The identifiers are only reserved again if no other range
+   * was reserved after this one, otherwise they stay unused until the project is counted again.
+   *
+   * @param range a reserved range
+   * @param used number of identifiers of the range that were used and stay reserved
+   */
+  public void release(Range range, int used) {
+    synchronized (stripe(range.project)) {
+      Counters c = projects.get(range.project);
+      if (c == null)
+        return;
+      c.live.remove(range);
+      if (c.get(range.kind) == range.first + range.size)
+        c.set(range.kind, range.first + Math.max(0, used));
+    }
+  }
+
+  /**
+   * @return the first position not taken by a legacy barcode, starting at the given position
+   */
+  private long skipLegacyBarcodes(String key, long position) {
+    boolean taken = true;
+    while (taken) {
+      taken = false;
+      for (String legacy : LEGACY_BARCODES)
+        if (legacy.startsWith(key) && BarcodeCodec.position(legacy) == position) {
+          position++;
+          taken = true;
+        }
+    }
+    return position;
+  }
+
+  private Counters getCounters(String key) {
+    Counters c = projects.get(key);
+    if (c == null) {
+      c = new Counters();
+      c.registered = new Counters();
+      projects.put(key, c);
+    }
+    return c;
+  }
+
+  private Object stripe(String key) {
+    return stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+  }
+
+  private String toKey(String project) {
+    return project.substring(project.lastIndexOf("/") + 1).toUpperCase();
+  }
+
+}
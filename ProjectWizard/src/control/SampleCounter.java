@@ -16,89 +16,71 @@
 package control;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
-
-import logging.Log4j2Logger;
 
 import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
 
+/**
+ * Hands out new experiment codes, entity codes and barcodes of a project. The counters are kept
+ * by {@link IdentifierReservations} for the whole application and are only counted again from the
+ * samples of the project when they are missing or old.
+ *
+ * @author Andreas Friedrich
+ *
+ */
 public class SampleCounter {
 
-  private int entityID;
-  // private int barcodeID;
-  private int expID;
-  private String barcode;
-  private String project;
-  logging.Logger logger = new Log4j2Logger(SampleCounter.class);
-  private Set<String> knownAtypical = new HashSet<String>();
-
-  public SampleCounter(List<Sample> samples) {
-    this(samples.get(0).getCode().substring(0, 5));
-    for (Sample s : samples)
-      increment(s);
-  }
+  private final IdentifierReservation identifiers;
 
+  /**
+   * @param project project code, its identifiers should be counted before, see
+   *        {@link IdentifierReservations#countIfNeeded}
+   */
   public SampleCounter(String project) {
-    entityID = 0;
-    expID = 0;
-    barcode = "";
-    // barcodeID = 1;
-    this.project = project;
+    this.identifiers = new IdentifierReservation(project);
   }
 
-  // TODO later updates (after initialization)
+  /**
+   * Updates the project counters with a sample that was registered
+   *
+   * @param s a sample of the project
+   */
   public void increment(Sample s) {
-    String code = s.getCode();
+    List<String> codes = new ArrayList<String>();
+    codes.add(s.getCode());
+    if (toExperimentCode(s) != null)
+      codes.add(toExperimentCode(s));
+    IdentifierReservations.Instance.registered(identifiers.getProject(), codes);
+  }
+
+  private String toExperimentCode(Sample s) {
     String experiment = s.getExperimentIdentifierOrNull();
-    try {
-      String exp = experiment.split(project + "E")[1];
-      int expNum = Integer.parseInt(exp);
-      if (expNum > expID)
-        expID = expNum;
-    } catch (Exception e) {
-      if (!knownAtypical.contains(experiment)) {
-        knownAtypical.add(experiment);
-        logger.warn("While counting existing experiments in project " + project
-            + " unfamiliar experiment identifier " + experiment + " was found.");
-      }
-    }
-    if (Functions.isQbicBarcode(code)) {
-      // previously registered samples...
-      List<String> specialCases = new ArrayList<String>(Arrays.asList("QMSHS001X3", "QMSHS002XB",
-          "QMSHS003XJ", "QMSHS004XR", "QMSHS005X1", "QMSHS006X9"));
-      if (code.startsWith("QMSHS999W"))
-        barcode = "QMSHS006X9";
-      if (!specialCases.contains(code)) {
-        if (Functions.compareSampleCodes(code, barcode) > 0)
-          barcode = code;
-      }
-    } else if (s.getSampleTypeCode().equals(("Q_BIOLOGICAL_ENTITY"))) {
-      int num = Integer.parseInt(s.getCode().split("-")[1]);
-      if (num >= entityID)
-        entityID = num;
-    }
+    if (experiment == null)
+      return null;
+    return experiment.substring(experiment.lastIndexOf("/") + 1);
   }
 
   public String getNewExperiment() {
-    expID++;
-    return project + "E" + expID;
+    return identifiers.nextExperiment();
   }
 
   public String getNewEntity() {
-    entityID++;
-    return project + "ENTITY-" + Integer.toString(entityID);
+    return identifiers.nextEntity();
   }
 
   public String getNewBarcode() {
-    if (barcode == null) {
-      barcode = project + "001A";
-      barcode = barcode + Functions.checksum(barcode);
+    try {
+      return identifiers.nextBarcode();
+    } catch (TooManySamplesException e) {
+      throw new IllegalStateException("No unused barcodes left in " + identifiers.getProject());
     }
-    barcode = Functions.incrementSampleCode(barcode);
-    return barcode;
+  }
+
+  /**
+   * Gives back the identifiers that were reserved but not handed out
+   */
+  public void release() {
+    identifiers.release();
   }
 
 }
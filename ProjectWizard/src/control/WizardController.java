@@ -15,20 +15,25 @@
  *******************************************************************************/
 package control;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
 
@@ -81,8 +86,11 @@ import com.vaadin.ui.themes.ValoTheme;
 import steps.ConditionInstanceStep;
 import steps.EntityStep;
 import steps.ExtractionStep;
+import io.AsyncDBManager;
 import io.DBManager;
 import io.DBVocabularies;
+import io.PeopleDirectory;
+import io.ProjectSampleCache;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 import steps.FinishStep;
 import steps.MSAnalyteStep;
@@ -110,6 +118,7 @@ public class WizardController implements IRegistrationController {
   private OpenbisCreationController openbisCreator;
   private Wizard w;
   private Map<Steps, WizardStep> steps;
+  private ExperimentSampleIndex projectIndex;
   private WizardDataAggregator dataAggregator;
   private boolean bioFactorInstancesSet = false;
   private boolean extractFactorInstancesSet = false;
@@ -118,14 +127,18 @@ public class WizardController implements IRegistrationController {
   private boolean copyMode = false;
   private DBVocabularies vocabularies;
   private DBManager dbm;
+  private AsyncDBManager asyncDBM;
   private FileDownloader tsvDL;
   private List<Note> notes;
   SamplePreparator prep = new SamplePreparator();
+  // fingerprint of the design whose samples were prepared last
+  private String preparedDesign;
   protected List<String> designExperimentTypes;
 
   logging.Logger logger = new Log4j2Logger(WizardController.class);
 
   private AttachmentConfig attachConfig;
+  private DesignSizeEstimator sizeEstimator;
 
   /**
    * 
@@ -137,14 +150,17 @@ public class WizardController implements IRegistrationController {
    * @param spaces List of space names existing in openBIS
    * @param dataMoverFolder for attachment upload
    * @param uploadSize
+   * @param sizeEstimator limits of the number of samples created per step and per design
    */
   public WizardController(IOpenBisClient openbis, DBManager dbm, DBVocabularies vocabularies,
-      AttachmentConfig attachmentConfig) {
+      AttachmentConfig attachmentConfig, DesignSizeEstimator sizeEstimator) {
     this.openbis = openbis;
     this.dbm = dbm;
+    this.asyncDBM = new AsyncDBManager(dbm);
     this.openbisCreator = new OpenbisCreationController(openbis);// wont work if openbis is down
     this.vocabularies = vocabularies;
     this.attachConfig = attachmentConfig;
+    this.sizeEstimator = sizeEstimator;
     this.designExperimentTypes = vocabularies.getExperimentTypes();
   }
 
@@ -230,13 +246,8 @@ public class WizardController implements IRegistrationController {
   public boolean projectHasBioEntities(String spaceCode, String code) {
     if (!openbis.projectExists(spaceCode, code))
       return false;
-    for (Experiment e : openbis.getExperimentsOfProjectByCode(code)) {
-      if (e.getExperimentTypeCode().equals("Q_EXPERIMENTAL_DESIGN")) {
-        if (openbis.getSamplesofExperiment(e.getIdentifier()).size() > 0)
-          return true;
-      }
-    }
-    return false;
+    return getProjectIndex(spaceCode, code)
+        .getNumberOfSamplesInExperimentType("Q_EXPERIMENTAL_DESIGN") > 0;
   }
 
   /**
@@ -250,18 +261,42 @@ public class WizardController implements IRegistrationController {
   public boolean projectHasExtracts(String spaceCode, String code) {
     if (!openbis.projectExists(spaceCode, code))
       return false;
-    for (Experiment e : openbis.getExperimentsOfProjectByCode(code)) {
-      if (e.getExperimentTypeCode().equals("Q_SAMPLE_EXTRACTION"))
-        if (openbis.getSamplesofExperiment(e.getIdentifier()).size() > 0)
-          return true;
+    return getProjectIndex(spaceCode, code)
+        .getNumberOfSamplesInExperimentType("Q_SAMPLE_EXTRACTION") > 0;
+  }
+
+  /**
+   * Returns the sample counts of a project, counting them in one pass if the project has not been
+   * indexed yet
+   * 
+   * @param spaceCode Code of the selected openBIS space
+   * @param code Code of the project
+   * @return
+   */
+  private ExperimentSampleIndex getProjectIndex(String spaceCode, String code) {
+    if (projectIndex == null || !projectIndex.isIndexOf(spaceCode, code)) {
+      projectIndex = new ExperimentSampleIndex(spaceCode, code,
+          openbis.getExperimentsOfProjectByCode(code), ProjectSampleCache.Instance
+              .getSamplesWithParentsAndChildren(openbis, "/" + spaceCode + "/" + code));
     }
-    return false;
+    return projectIndex;
   }
 
   public Wizard getWizard() {
     return w;
   }
 
+  /**
+   * Cleans up after the wizard was finished or cancelled or its session ended, deleting the tsv
+   * file of the current design and giving back its reserved identifiers
+   */
+  public void cleanUp() {
+    if (dataAggregator != null) {
+      dataAggregator.deleteTSV();
+      dataAggregator.releaseIdentifiers();
+    }
+  }
+
   private String generateProjectCode() {
     Random r = new Random();
     String res = "";
@@ -335,7 +370,7 @@ public class WizardController implements IRegistrationController {
     steps.put(Steps.Finish, finishStep);
 
     this.dataAggregator = new WizardDataAggregator(steps, openbis, vocabularies.getTaxMap(),
-        vocabularies.getTissueMap(), vocabularies.getPeople());
+        vocabularies.getTissueMap(), vocabularies.getPeople(), sizeEstimator);
     // w.addStep(finishStep);
     w.addStep(contextStep);
 
@@ -385,7 +420,9 @@ public class WizardController implements IRegistrationController {
 
       @Override
       public void buttonClick(ClickEvent event) {
-        vocabularies.setPeople(dbm.fetchPeople());
+        // the user asked for a reload, don't rely on the cached people being current
+        PeopleDirectory.Instance.invalidate();
+        vocabularies.setPeople(asyncDBM.fetchPeople(vocabularies.getPeople()));
         Set<String> people = vocabularies.getPeople().keySet();
         projSelection.updatePeople(people);
         entStep.updatePeople(people);
@@ -413,7 +450,16 @@ public class WizardController implements IRegistrationController {
           w.addStep(steps.get(Steps.Finish));
         }
         if (src.equals("Send Project to QBiC")) {
-          String tsv = dataAggregator.getTSVContent();
+          String tsv;
+          try {
+            tsv = dataAggregator.getTSVContent();
+          } catch (IOException e) {
+            logger.error("Could not read tsv file: " + e.getMessage());
+            Styles.notification("Project inquiry failed",
+                "The project could not be sent. Please try again or contact us.",
+                NotificationType.ERROR);
+            return;
+          }
           String space = contextStep.getSpaceCode();
           String project = contextStep.getProjectCode();
           String altTitle = contextStep.getExpSecondaryName();
@@ -531,9 +577,10 @@ public class WizardController implements IRegistrationController {
         String space = contextStep.getSpaceCode();
         if (space != null) {
           List<String> projects = new ArrayList<String>();
+          Map<String, String> names = asyncDBM.getProjectNamesOfSpace(space);
           for (Project p : openbis.getProjectsOfSpace(space)) {
             String code = p.getCode();
-            String name = dbm.getProjectName("/" + space + "/" + code);
+            String name = names.get("/" + space + "/" + code);
             if (name != null && name.length() > 0) {
               if (name.length() >= 80)
                 name = name.substring(0, 80) + "...";
@@ -760,6 +807,15 @@ public class WizardController implements IRegistrationController {
     };
 
     techStep.initTestStep(testPoolListener, proteinListener, peopleCL, steps);
+    techStep.addSampleNumberListener(new ValueChangeListener() {
+
+      private static final long serialVersionUID = -5026931178318047729L;
+
+      @Override
+      public void valueChange(ValueChangeEvent event) {
+        updateTestSampleEstimate(techStep);
+      }
+    });
 
     ValueChangeListener noMeasureListener = new ValueChangeListener() {
 
@@ -871,6 +927,8 @@ public class WizardController implements IRegistrationController {
                 dataAggregator.prepareEntities(entCondInstStep.getPreSelection(), copyMode), null);
           } catch (JAXBException e) {
             e.printStackTrace();
+          } catch (IllegalStateException e) {
+            designFailed(e);
           }
         }
         // Extract Setup Step
@@ -907,6 +965,8 @@ public class WizardController implements IRegistrationController {
                 extrStep.getLabelingMethod());
           } catch (JAXBException e) {
             e.printStackTrace();
+          } catch (IllegalStateException e) {
+            designFailed(e);
           }
         }
         // Extract Pool Step
@@ -931,13 +991,19 @@ public class WizardController implements IRegistrationController {
           dataAggregator.setExtracts(all);
           if (copyMode)
             techStep.setAnalyteInputs(dataAggregator.getBaseAnalyteInformation());
+          updateTestSampleEstimate(techStep);
         }
         // Test Pool Step
         if (event.getActivatedStep().equals(poolStep2)) {
           if (!testPoolsSet) {// if we come from the analyte step the pools are reset, if we come
                               // back from the next step they are not
-            poolStep2.setSamples(dataAggregator.prepareTestSamples(), Steps.Test_Sample_Pooling);
-            testPoolsSet = true;
+            try {
+              poolStep2.setSamples(dataAggregator.prepareTestSamples(),
+                  Steps.Test_Sample_Pooling);
+              testPoolsSet = true;
+            } catch (IllegalStateException e) {
+              designFailed(e);
+            }
           }
         }
         // Protein Fractionation
@@ -946,8 +1012,13 @@ public class WizardController implements IRegistrationController {
 
           if (!testPoolsSet) {// if pools aren't set at this point then there was no pooling
                               // selected before
-            dataAggregator.prepareTestSamples();// we reset the analyte samples in case we come from
-                                                // the next step and prepare them anew
+            try {
+              dataAggregator.prepareTestSamples();// we reset the analyte samples in case we come
+                                                  // from the next step and prepare them anew
+            } catch (IllegalStateException e) {
+              designFailed(e);
+              return;
+            }
           }
           // we forward testsamples and potential pools directly to the fractionation step to sort
           // them out
@@ -978,8 +1049,14 @@ public class WizardController implements IRegistrationController {
           // Test samples were filled out
           if (w.getSteps().contains(steps.get(Steps.Test_Samples))) {
             boolean afterMS = w.getSteps().contains(steps.get(Steps.Protein_Fractionation));
-            if (!testPoolsSet && !afterMS)
-              dataAggregator.prepareTestSamples();
+            if (!testPoolsSet && !afterMS) {
+              try {
+                dataAggregator.prepareTestSamples();
+              } catch (IllegalStateException e) {
+                designFailed(e);
+                return;
+              }
+            }
             if (techStep.hasMHCLigands())
               dataAggregator.prepareMHCExtractSamplesAndExperiments();
             List<AOpenbisSample> all = new ArrayList<AOpenbisSample>();
@@ -994,12 +1071,7 @@ public class WizardController implements IRegistrationController {
                   .setFractionationExperimentsProperties(getFractionationPropertiesFromLastStep());
               dataAggregator.createFractionationSamplesAndExperiments();
             }
-            createTSV();
-            try {
-              prep.processTSV(dataAggregator.getTSV(), DesignType.QBIC);
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
+            prepareDesign();
             armDownloadButtons(regStep.getDownloadButton());
             List<SampleSummaryBean> summaries = prep.getSummary();
             Map<String, String> taxMap = new HashMap<String, String>();
@@ -1027,12 +1099,7 @@ public class WizardController implements IRegistrationController {
             } catch (JAXBException e1) {
               e1.printStackTrace();
             }
-            createTSV();
-            try {
-              prep.processTSV(dataAggregator.getTSV(), DesignType.QBIC);
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
+            prepareDesign();
             armDownloadButtons(regStep.getDownloadButton());
             List<SampleSummaryBean> summaries = prep.getSummary();
             Map<String, String> taxMap = new HashMap<String, String>();
@@ -1124,12 +1191,30 @@ public class WizardController implements IRegistrationController {
     return res;
   }
 
-  protected void createTSV() {
+  /**
+   * Prepares the samples of the current design for registration. Going back and forth between the
+   * steps activates the summary step again and again, so the design is only parsed again if its
+   * tsv differs from the one that was prepared last. The parser only reads files, so the tsv is
+   * written to a temporary file, fingerprinted while it is written, and deleted afterwards. The
+   * download writes its own file when it is started.
+   */
+  protected void prepareDesign() {
     try {
-      dataAggregator.createTSV();
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-    } catch (UnsupportedEncodingException e) {
+      try {
+        File tsv = dataAggregator.createTSV();
+        String design = dataAggregator.getTSVDigest();
+        if (design.equals(preparedDesign)) {
+          logger.debug("Design did not change, using prepared samples.");
+          return;
+        }
+        preparedDesign = null;
+        if (prep.processTSV(tsv, DesignType.QBIC))
+          preparedDesign = design;
+      } finally {
+        dataAggregator.deleteTSV();
+      }
+    } catch (IOException e) {
+      logger.error("Could not write tsv file: " + e.getMessage());
       e.printStackTrace();
     }
   }
@@ -1153,16 +1238,93 @@ public class WizardController implements IRegistrationController {
   protected void reloadConditionsPreviewTable(ConditionInstanceStep step, String amount,
       List<AOpenbisSample> previousLevel) {
     if (step.validInput()) {
+      step.setAmountListener(createAmountListener(step, amount, previousLevel));
       if (previousLevel.isEmpty())
         step.buildTable(preparePreviewPermutations(step.getFactors()), amount);
       else
         step.buildTable(preparePreviewPermutations(step.getFactors(), previousLevel), amount);
+      updateSampleEstimate(step, amount, previousLevel);
     } else {
       step.destroyTable();
     }
 
   }
 
+  private ValueChangeListener createAmountListener(final ConditionInstanceStep step,
+      final String amount, final List<AOpenbisSample> previousLevel) {
+    return new ValueChangeListener() {
+
+      private static final long serialVersionUID = 3504826371186942417L;
+
+      @Override
+      public void valueChange(ValueChangeEvent event) {
+        updateSampleEstimate(step, amount, previousLevel);
+      }
+    };
+  }
+
+  /**
+   * Shows the number of samples the conditions and amounts of a step will lead to, without
+   * creating them
+   * 
+   * @param step entity or extract condition step
+   * @param amount default number of replicates
+   * @param previousLevel samples of the previous tier, empty for entities
+   */
+  protected void updateSampleEstimate(ConditionInstanceStep step, String amount,
+      List<AOpenbisSample> previousLevel) {
+    try {
+      int reps = Integer.parseInt(amount);
+      Map<Object, Integer> amounts = step.getPreSelection();
+      List<List<Property>> factors = step.getFactors();
+      long tier;
+      long design;
+      if (previousLevel.isEmpty()) {
+        tier = DesignSizeEstimator.countEntities(factors, reps, amounts);
+        design = tier;
+      } else {
+        tier = DesignSizeEstimator.countExtracts(previousLevel.size(), factors, reps, amounts);
+        design = previousLevel.size() + tier;
+      }
+      step.setSampleEstimate(DesignSizeEstimator.describe(tier, design),
+          sizeEstimator.getLimitViolation(tier, design));
+    } catch (NumberFormatException e) {
+      step.setSampleEstimate("", "Please enter whole numbers of samples.");
+    }
+  }
+
+  /**
+   * Tells the user that the samples of the design could not be created, e.g. because the design
+   * exceeds the sample limits or the project has no barcodes left, and goes back to the step before
+   * 
+   * @param e exception thrown while the samples were prepared
+   */
+  private void designFailed(IllegalStateException e) {
+    logger.warn("Samples could not be prepared: " + e.getMessage());
+    Styles.notification("Samples could not be created", e.getMessage(), NotificationType.ERROR);
+    w.back();
+  }
+
+  /**
+   * Shows the number of test samples the analytes and replicates of the test step will lead to
+   * 
+   * @param techStep test sample step
+   */
+  protected void updateTestSampleEstimate(TestStep techStep) {
+    List<AOpenbisSample> extracts = dataAggregator.getExtracts();
+    if (extracts == null)
+      return;
+    try {
+      long tests =
+          DesignSizeEstimator.countTests(extracts.size(), techStep.getAnalyteInformation());
+      long design = dataAggregator.getEntities().size() + extracts.size() + tests;
+      techStep.setSampleEstimate(DesignSizeEstimator.describe(tests, design),
+          sizeEstimator.getLimitViolation(tests, design));
+    } catch (NumberFormatException e) {
+      techStep.setSampleEstimate("", "Please enter whole numbers of replicates.");
+    }
+  }
+
   private void updateContextOptions(ProjectInformationComponent projSelection,
       ProjectContextStep contextStep) {
     // disable everything
@@ -1180,6 +1342,8 @@ public class WizardController implements IRegistrationController {
         projSelection.tryEnableCustomProject("");
         contextStep.enableNewContextOption(true);
         contextStep.makeContextVisible();
+        // counts might have changed since the project was last selected
+        projectIndex = null;
         boolean hasBioEntities = projectHasBioEntities(space, existingProject);
         boolean hasExtracts = projectHasExtracts(space, existingProject);
         contextStep.enableExtractContextOption(hasBioEntities);
@@ -1188,7 +1352,8 @@ public class WizardController implements IRegistrationController {
         contextStep.enableCopyContextOption(hasBioEntities);
 
         List<ExperimentBean> beans = new ArrayList<ExperimentBean>();
-        for (Experiment e : openbis.getExperimentsOfProjectByCode(existingProject)) {
+        ExperimentSampleIndex index = getProjectIndex(space, existingProject);
+        for (Experiment e : index.getExperiments()) {
           if (designExperimentTypes.contains(e.getExperimentTypeCode())) {
             Date date = e.getRegistrationDetails().getRegistrationDate();
             SimpleDateFormat dt1 = new SimpleDateFormat("yy-MM-dd");
@@ -1198,7 +1363,7 @@ public class WizardController implements IRegistrationController {
             boolean pilot = false;
             if (e.getProperties().get("Q_IS_PILOT") != null)
               pilot = Boolean.parseBoolean(e.getProperties().get("Q_IS_PILOT"));
-            int numOfSamples = openbis.getSamplesofExperiment(e.getIdentifier()).size();
+            int numOfSamples = index.getNumberOfSamples(e);
             beans.add(new ExperimentBean(e.getIdentifier(), e.getExperimentTypeCode(),
                 Integer.toString(numOfSamples), dt, pilot));
           }
@@ -1219,9 +1384,10 @@ public class WizardController implements IRegistrationController {
    * @param previousTier Samples of the previous tier
    * @return
    */
-  public List<String> preparePreviewPermutations(List<List<Property>> factorLists,
+  public Iterable<String> preparePreviewPermutations(List<List<Property>> factorLists,
       List<AOpenbisSample> previousTier) {
-    List<String> permutations = new ArrayList<String>();
+    List<List<String>> values = getFactorValues(factorLists);
+    List<FactorPermutations<String>> designs = new ArrayList<FactorPermutations<String>>();
     for (AOpenbisSample e : previousTier) {
       List<List<String>> res = new ArrayList<List<String>>();
       String secName = e.getQ_SECONDARY_NAME();
@@ -1229,19 +1395,10 @@ public class WizardController implements IRegistrationController {
         secName = "";
       String condKey = "(" + e.getCode().split("-")[1] + ") " + secName;
       res.add(new ArrayList<String>(Arrays.asList(condKey)));
-      for (List<Property> instances : factorLists) {
-        List<String> factorValues = new ArrayList<String>();
-        for (Property f : instances) {
-          String name = f.getValue();
-          if (f.hasUnit())
-            name = name + " " + f.getUnit().getValue();
-          factorValues.add(name);
-        }
-        res.add(factorValues);
-      }
-      permutations.addAll(dataAggregator.generatePermutations(res));
+      res.addAll(values);
+      designs.add(new FactorPermutations<String>(res));
     }
-    return permutations;
+    return toPreviewLabels(designs);
   }
 
   /**
@@ -1250,7 +1407,12 @@ public class WizardController implements IRegistrationController {
    * @param factorLists
    * @return
    */
-  public List<String> preparePreviewPermutations(List<List<Property>> factorLists) {
+  public Iterable<String> preparePreviewPermutations(List<List<Property>> factorLists) {
+    return toPreviewLabels(
+        Arrays.asList(new FactorPermutations<String>(getFactorValues(factorLists))));
+  }
+
+  private List<List<String>> getFactorValues(List<List<Property>> factorLists) {
     List<List<String>> res = new ArrayList<List<String>>();
     for (List<Property> instances : factorLists) {
       List<String> factorValues = new ArrayList<String>();
@@ -1262,13 +1424,51 @@ public class WizardController implements IRegistrationController {
       }
       res.add(factorValues);
     }
-    List<String> permutations = dataAggregator.generatePermutations(res);
-    return permutations;
+    return res;
+  }
+
+  /**
+   * Labels of the combinations of one or more designs, created while the preview table is filled
+   */
+  private Iterable<String> toPreviewLabels(final List<FactorPermutations<String>> designs) {
+    return new Iterable<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return new Iterator<String>() {
+          private final Iterator<FactorPermutations<String>> designIt = designs.iterator();
+          private Iterator<List<String>> current = Collections.<List<String>>emptyIterator();
+
+          @Override
+          public boolean hasNext() {
+            while (!current.hasNext() && designIt.hasNext())
+              current = designIt.next().iterator();
+            return current.hasNext();
+          }
+
+          @Override
+          public String next() {
+            if (!hasNext())
+              throw new NoSuchElementException();
+            StringBuilder label = new StringBuilder();
+            for (String name : WizardDataAggregator.toConditionNames(current.next())) {
+              if (label.length() > 0)
+                label.append(" ; ");
+              label.append(name);
+            }
+            return label.toString();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
   }
 
   protected void armDownloadButtons(Button tsv) {
-    StreamResource tsvStream =
-        getTSVStream(dataAggregator.getTSVContent(), dataAggregator.getTSVName());
+    StreamResource tsvStream = getTSVStream(dataAggregator.getTSVName());
     if (tsvDL == null) {
       tsvDL = new FileDownloader(tsvStream);
       tsvDL.extend(tsv);
@@ -1314,13 +1514,16 @@ public class WizardController implements IRegistrationController {
     return openbisCreator.getErrors();
   }
 
-  public StreamResource getTSVStream(final String content, String name) {
+  /**
+   * Download resource streaming the tsv of the current design. The tsv is only written to disk when
+   * the download starts, the file replaces the one of the previous download.
+   */
+  public StreamResource getTSVStream(String name) {
     StreamResource resource = new StreamResource(new StreamResource.StreamSource() {
       @Override
       public InputStream getStream() {
         try {
-          InputStream is = new ByteArrayInputStream(content.getBytes());
-          return is;
+          return new BufferedInputStream(new FileInputStream(dataAggregator.createTSV()));
         } catch (Exception e) {
           e.printStackTrace();
           return null;
@@ -1341,6 +1544,8 @@ public class WizardController implements IRegistrationController {
 
   @Override
   public void performPostRegistrationTasks(boolean success) throws SQLException {
+    // identifiers of the registered samples stay reserved
+    dataAggregator.releaseIdentifiers();
     if (success) {
       ProjectContextStep contextStep = (ProjectContextStep) steps.get(Steps.Project_Context);
       String projectIdentifier =
@@ -1349,16 +1554,14 @@ public class WizardController implements IRegistrationController {
       List<OpenbisExperiment> exps = dataAggregator.getExperiments();
       if (exps == null)
         exps = new ArrayList<OpenbisExperiment>();
-      int investigatorID = -1;
-      int contactID = -1;
-      int managerID = -1;
+      Map<String, Integer> roles = new LinkedHashMap<String, Integer>();
+      Map<String, Integer> people = vocabularies.getPeople();
       if (!contextStep.getPerson(PersonType.Investigator).equals(""))
-        investigatorID =
-            vocabularies.getPeople().get(contextStep.getPerson(PersonType.Investigator));
-      if (!contextStep.getPerson(PersonType.Manager).equals(""))
-        managerID = vocabularies.getPeople().get(contextStep.getPerson(PersonType.Manager));
+        roles.put("PI", people.get(contextStep.getPerson(PersonType.Investigator)));
       if (!contextStep.getPerson(PersonType.Contact).equals(""))
-        contactID = vocabularies.getPeople().get(contextStep.getPerson(PersonType.Contact));
+        roles.put("Contact", people.get(contextStep.getPerson(PersonType.Contact)));
+      if (!contextStep.getPerson(PersonType.Manager).equals(""))
+        roles.put("Manager", people.get(contextStep.getPerson(PersonType.Manager)));
 
       logger.info("Registration complete!");
       for (OpenbisExperiment e : exps) {
@@ -1369,21 +1572,10 @@ public class WizardController implements IRegistrationController {
           }
         }
       }
-      int projectID = dbm.addProjectToDB(projectIdentifier, projectName);
-      if (investigatorID != -1)
-        dbm.addPersonToProject(projectID, investigatorID, "PI");
-      if (contactID != -1)
-        dbm.addPersonToProject(projectID, contactID, "Contact");
-      if (managerID != -1)
-        dbm.addPersonToProject(projectID, managerID, "Manager");
-      for (OpenbisExperiment e : exps) {
-        String identifier = projectIdentifier + "/" + e.getOpenbisName();
-        int expID = dbm.addExperimentToDB(identifier);
-        if (e.getPersonID() > -1) {
-          int person = e.getPersonID();
-          dbm.addPersonToExperiment(expID, person, "Contact");
-        }
-      }
+      Map<String, Integer> expContacts = new LinkedHashMap<String, Integer>();
+      for (OpenbisExperiment e : exps)
+        expContacts.put(projectIdentifier + "/" + e.getOpenbisName(), e.getPersonID());
+      dbm.addProjectWithExperimentsToDB(projectIdentifier, projectName, roles, expContacts);
     } else {
       // nothing for now
     }
@@ -15,11 +15,18 @@
  *******************************************************************************/
 package control;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
-import java.io.UnsupportedEncodingException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -28,13 +35,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.xml.bind.DatatypeConverter;
 import javax.xml.bind.JAXBException;
 
+
 import logging.Log4j2Logger;
 import main.ProjectwizardUI;
 import model.AOpenbisSample;
 import model.ExperimentModel;
 import model.ExperimentType;
+import model.FactorVector;
 import model.MHCLigandExtractionProtocol;
 import model.MSExperimentModel;
 import model.OpenbisBiologicalEntity;
@@ -53,6 +63,7 @@ import org.apache.commons.lang.StringUtils;
 import org.vaadin.teemu.wizards.WizardStep;
 
 import control.WizardController.Steps;
+import io.ProjectSampleCache;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Experiment;
 import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
@@ -78,7 +89,8 @@ public class WizardDataAggregator {
   private ConditionInstanceStep s6;
   private TestStep s8;
 
-  private String tsvContent;
+  private File tsvFile;
+  private String tsvDigest;
 
   private IOpenBisClient openbis;
   private XMLParser xmlParser = new XMLParser();
@@ -86,12 +98,11 @@ public class WizardDataAggregator {
   private Map<String, String> tissueMap;
   private Map<String, Property> factorMap;
   private Map<String, Integer> personMap;
-  private int firstFreeExperimentID;
-  private int firstFreeEntityID;
+  private IdentifierReservation identifiers;
+  private DesignSizeEstimator sizeEstimator;
   private Map<String, Sample> existingSamples;
   private Map<String, String> oldCodesToNewCodes;
   private String nextBarcode;
-  private String firstFreeBarcode;
   private char classChar = 'X';
 
   // mandatory openBIS fields
@@ -137,9 +148,11 @@ public class WizardDataAggregator {
    * @param openbis openBIS client connection to query for existing context
    * @param taxMap mapping between taxonomy IDs and species names
    * @param tissueMap mapping of tissue names and labels
+   * @param sizeEstimator limits of the number of samples created per tier and per design
    */
   public WizardDataAggregator(Map<Steps, WizardStep> steps, IOpenBisClient openbis,
-      Map<String, String> taxMap, Map<String, String> tissueMap, Map<String, Integer> personMap) {
+      Map<String, String> taxMap, Map<String, String> tissueMap, Map<String, Integer> personMap,
+      DesignSizeEstimator sizeEstimator) {
     s1 = (ProjectContextStep) steps.get(Steps.Project_Context);
     s2 = (EntityStep) steps.get(Steps.Entities);
     s3 = (ConditionInstanceStep) steps.get(Steps.Entity_Conditions);
@@ -151,6 +164,7 @@ public class WizardDataAggregator {
     this.taxMap = taxMap;
     this.personMap = personMap;
     this.tissueMap = tissueMap;
+    this.sizeEstimator = sizeEstimator;
   }
 
   public String getProjectCode() {
@@ -158,51 +172,46 @@ public class WizardDataAggregator {
   }
 
   /**
-   * Fetches context information like space and project and computes first unused IDs of samples and
-   * context.
+   * Fetches context information like space and project and reserves unused IDs of samples and
+   * context. Entity and experiment IDs are handed out from the first reserved one again, barcodes
+   * continue after the ones handed out before.
    */
   private void prepareBasics() {
-    firstFreeExperimentID = 1;
-    firstFreeEntityID = 1;
-    firstFreeBarcode = "";// TODO cleanup where not needed
     existingSamples = new HashMap<String, Sample>();
     spaceCode = s1.getSpaceCode();
     projectCode = s1.getProjectCode().toUpperCase();
 
     samples = new ArrayList<Sample>();
     if (openbis.projectExists(spaceCode, projectCode)) {
-      samples.addAll(openbis.getSamplesWithParentsAndChildrenOfProjectBySearchService(
+      samples.addAll(ProjectSampleCache.Instance.getSamplesWithParentsAndChildren(openbis,
           "/" + spaceCode + "/" + projectCode));
     }
 
     if (!s1.fetchTSVModeSet()) {
-      for (Experiment e : openbis.getExperimentsOfProjectByCode(projectCode)) {
-        String code = e.getCode();
-        String[] split = code.split(projectCode + "E");
-        if (code.startsWith(projectCode + "E") && split.length > 1) {
-          int num = 0;
-          try {
-            num = Integer.parseInt(split[1]);
-          } catch (Exception e2) {
-          }
-          if (firstFreeExperimentID <= num)
-            firstFreeExperimentID = num + 1;
-        }
-      }
+      for (Sample s : samples)
+        existingSamples.put(s.getCode(), s);
+      if (IdentifierReservations.Instance.needsCount(projectCode))
+        IdentifierReservations.Instance.count(projectCode,
+            openbis.getExperimentsOfProjectByCode(projectCode), samples);
+    }
+    if (identifiers == null || !identifiers.getProject().equals(projectCode)) {
+      releaseIdentifiers();
+      identifiers = new IdentifierReservation(projectCode);
+    }
+    // the design is created anew, so its identifiers can be handed out again
+    identifiers.rewind();
+    nextBarcode = null;
+  }
 
-      for (Sample s : samples) {
-        String code = s.getCode();
-        existingSamples.put(code, s);
-        if (Functions.isQbicBarcode(code)) {
-          if (Functions.compareSampleCodes(firstFreeBarcode, code) <= 0) {
-            firstFreeBarcode = Functions.incrementSampleCode(code);
-          }
-        } else if (s.getSampleTypeCode().equals(("Q_BIOLOGICAL_ENTITY"))) {
-          int num = Integer.parseInt(s.getCode().split("-")[1]);
-          if (num >= firstFreeEntityID)
-            firstFreeEntityID = num + 1;
-        }
-      }
+  /**
+   * Gives back the reserved identifiers that were not used in the current design, e.g. after it
+   * was registered or when the wizard is reset
+   */
+  public void releaseIdentifiers() {
+    if (identifiers != null) {
+      identifiers.release();
+      identifiers = null;
+      nextBarcode = null;
     }
   }
 
@@ -243,6 +252,8 @@ public class WizardDataAggregator {
       List<List<Property>> valueLists = s3.getFactors();
       bioFactors = createFactorInfo(valueLists);
 
+      long size = DesignSizeEstimator.countEntities(bioFactors, bioReps, map);
+      sizeEstimator.checkLimits(size, size);
       entities = buildEntities(map);
     }
     return entities;
@@ -320,6 +331,9 @@ public class WizardDataAggregator {
           ExperimentType.Q_SAMPLE_EXTRACTION, personID, props));
       List<List<Property>> valueLists = s6.getFactors();
       extractFactors = createFactorInfo(valueLists);
+      long size =
+          DesignSizeEstimator.countExtracts(entities.size(), extractFactors, extractReps, map);
+      sizeEstimator.checkLimits(size, entities.size() + size);
       // keep track of id letters for different conditions
       classChars = new HashMap<String, Character>();
       extracts = buildExtracts(entities, classChars, map);
@@ -369,6 +383,8 @@ public class WizardDataAggregator {
    */
   public List<List<AOpenbisSample>> prepareTestSamples() {
     techTypeInfo = s8.getAnalyteInformation();
+    long size = DesignSizeEstimator.countTests(extracts.size(), techTypeInfo);
+    sizeEstimator.checkLimits(size, entities.size() + extracts.size() + size);
     if (inheritExtracts) {
       prepareBasics();
       classChars = new HashMap<String, Character>();
@@ -521,38 +537,26 @@ public class WizardDataAggregator {
    * @return
    */
   private String buildExperimentName() {
-    firstFreeExperimentID++;
-    return projectCode + "E" + (firstFreeExperimentID - 1);
+    return identifiers.nextExperiment();
   }
 
   /**
-   * Generates all permutations of a list of experiment conditions
+   * Returns the condition names of a combination of factor levels. Empty names at the start or end
+   * of the combination (e.g. missing secondary names of parent samples) are left out.
    * 
-   * @param lists Instance lists of different conditions
-   * @return List of all possible permutations of the input conditions
+   * @param combination one combination of factor levels
+   * @return view of the non-empty part of the combination, a single empty name if nothing is left
    */
-  public List<String> generatePermutations(List<List<String>> lists) {
-    List<String> res = new ArrayList<String>();
-    generatePermutationsHelper(lists, res, 0, "");
-    return res;
-  }
-
-  /**
-   * recursive helper
-   */
-  private void generatePermutationsHelper(List<List<String>> lists, List<String> result, int depth,
-      String current) {
-    String separator = "###";
-    if (depth == lists.size()) {
-      result.add(current);
-      return;
-    }
-    for (int i = 0; i < lists.get(depth).size(); ++i) {
-      if (current.equals(""))
-        separator = "";
-      generatePermutationsHelper(lists, result, depth + 1,
-          current + separator + lists.get(depth).get(i));
-    }
+  public static List<String> toConditionNames(List<String> combination) {
+    int from = 0;
+    int to = combination.size();
+    while (from < to && combination.get(from).isEmpty())
+      from++;
+    while (to > from && combination.get(to - 1).isEmpty())
+      to--;
+    if (from == to)
+      return Arrays.asList("");
+    return combination.subList(from, to);
   }
 
   /**
@@ -567,25 +571,22 @@ public class WizardDataAggregator {
     List<AOpenbisSample> entities = new ArrayList<AOpenbisSample>();
     List<List<String>> factorLists = new ArrayList<List<String>>();
     factorLists.addAll(bioFactors);
-    List<String> permutations = generatePermutations(factorLists);
-    List<List<String>> permLists = new ArrayList<List<String>>();
-    for (String concat : permutations) {
-      permLists.add(new ArrayList<String>(Arrays.asList(concat.split("###"))));
-    }
-    int entityNum = firstFreeEntityID;
     int defBioReps = bioReps;
     int permID = 0;
-    for (List<String> secondaryNameList : permLists) {
+    for (List<String> combination : new FactorPermutations<String>(factorLists)) {
       permID++;
+      List<String> secondaryNameList = toConditionNames(combination);
       String secondaryName = nameListToSecondaryName(secondaryNameList);
       if (map.containsKey(permID))
         defBioReps = map.get(permID);
+      // all replicates of a condition share its factors
+      List<Property> conditionFactors = new ArrayList<Property>();
+      for (String name : secondaryNameList) {
+        if (factorMap.containsKey(name))
+          conditionFactors.add(factorMap.get(name));
+      }
+      FactorVector factors = FactorVector.of(conditionFactors);
       for (int i = defBioReps; i > 0; i--) {
-        List<Property> factors = new ArrayList<Property>();
-        for (String name : secondaryNameList) {
-          if (factorMap.containsKey(name))
-            factors.add(factorMap.get(name));
-        }
         if (s2.speciesIsFactor()) {
           for (String factor : secondaryNameList) {
             if (taxMap.containsKey(factor))
@@ -593,10 +594,9 @@ public class WizardDataAggregator {
           }
         }
         String taxID = taxMap.get(species);
-        entities.add(new OpenbisBiologicalEntity(projectCode + "ENTITY-" + entityNum, spaceCode,
+        entities.add(new OpenbisBiologicalEntity(identifiers.nextEntity(), spaceCode,
             experiments.get(0).getOpenbisName(), secondaryName, "", factors, taxID, speciesInfo,
             ""));
-        entityNum++;
       }
     }
     return entities;
@@ -604,7 +604,8 @@ public class WizardDataAggregator {
 
   /**
    * Build and return a list of all possible biological extracts given their conditions, using
-   * existing entities. Keep track of condition in a HashMap for later
+   * existing entities. Keep track of condition in a HashMap for later. The extracts of different
+   * combinations of entity and conditions are created in parallel, barcodes are reserved before.
    * 
    * @param entities Existing (or prepared) biological entity samples these extracts will be
    *        attached to
@@ -613,87 +614,114 @@ public class WizardDataAggregator {
    * @param map
    * @return List of AOpenbisSamples containing extract samples
    */
-  private List<AOpenbisSample> buildExtracts(List<AOpenbisSample> entities,
+  private List<AOpenbisSample> buildExtracts(final List<AOpenbisSample> entities,
       Map<String, Character> classChars, Map<Object, Integer> map) {
     int expNum = experiments.size() - techTypeInfo.size() - 1;
-    List<AOpenbisSample> extracts = new ArrayList<AOpenbisSample>();
-    int permID = 0;
-    Map<String, TissueInfo> specialTissueInfos = s6.getSpecialTissueMap();
-    for (AOpenbisSample e : entities) {
-      List<List<String>> factorLists = new ArrayList<List<String>>();
-      String secName = e.getQ_SECONDARY_NAME();
-      if (secName == null)
-        secName = "";
-      factorLists.add(new ArrayList<String>(Arrays.asList(secName)));
-
-      factorLists.addAll(extractFactors);
-      List<String> permutations = generatePermutations(factorLists);
-      List<List<String>> permLists = new ArrayList<List<String>>();
-      for (String concat : permutations) {
-        permLists.add(new ArrayList<String>(Arrays.asList(concat.split("###"))));
-      }
-      for (List<String> secondaryNameList : permLists) {
-        permID++;
-        List<Property> factors = new ArrayList<Property>();
-        factors.addAll(e.getFactors());
-        for (String name : secondaryNameList)
-          for (String element : name.split(";")) {
-            element = element.trim();
-            if (factorMap.containsKey(element)) {
-              if (!factors.contains(factorMap.get(element)))
-                factors.add(factorMap.get(element));
-            }
-          }
-        String secondaryName = nameListToSecondaryName(secondaryNameList);
-        int defExtrReps = extractReps;
-        if (map.containsKey(permID))
-          defExtrReps = map.get(permID);
-        for (int i = defExtrReps; i > 0; i--) {
-          String tissueCode = "";
-          if (s5.isTissueFactor()) {
-            for (String factorInstance : secondaryNameList) {
-              if (specialTissueInfos.containsKey(factorInstance)) {
-                TissueInfo info = specialTissueInfos.get(factorInstance);
-                tissue = info.getPrimary();
-                specialTissue = info.getSpecific();
+    final String experiment = experiments.get(expNum).getOpenbisName();
+    final Map<String, TissueInfo> specialTissueInfos = s6.getSpecialTissueMap();
+    final FactorPermutations<String> permutations =
+        new FactorPermutations<String>(extractFactors);
+    final int perEntity = (int) permutations.size();
+    // number of extracts of each combination of entity and conditions, numbered like in the
+    // preview table
+    final int[] reps = new int[entities.size() * perEntity];
+    for (int permID = 1; permID <= reps.length; permID++) {
+      int defExtrReps = extractReps;
+      if (map.containsKey(permID))
+        defExtrReps = map.get(permID);
+      reps[permID - 1] = Math.max(0, defExtrReps);
+    }
+    final String[] barcodes = reserveBarcodes(DesignExpansion.count(reps));
+    final String defaultTissue = tissue;
+    final String defaultSpecialTissue = specialTissue;
+    final boolean tissueFactor = s5.isTissueFactor();
+    List<AOpenbisSample> extracts =
+        DesignExpansion.expand(reps, new DesignExpansion.Partition<AOpenbisSample>() {
+
+          @Override
+          public void expand(int partition, int first, List<AOpenbisSample> target) {
+            AOpenbisSample e = entities.get(partition / perEntity);
+            String secName = e.getQ_SECONDARY_NAME();
+            if (secName == null)
+              secName = "";
+            List<String> combination = new ArrayList<String>();
+            combination.add(secName);
+            combination.addAll(permutations.get(partition % perEntity));
+            List<String> secondaryNameList = toConditionNames(combination);
+            List<Property> factors = new ArrayList<Property>();
+            factors.addAll(e.getFactors());
+            for (String name : secondaryNameList)
+              for (String element : name.split(";")) {
+                element = element.trim();
+                if (factorMap.containsKey(element)) {
+                  if (!factors.contains(factorMap.get(element)))
+                    factors.add(factorMap.get(element));
+                }
+              }
+            FactorVector curFactors = FactorVector.of(factors);
+            String secondaryName = nameListToSecondaryName(secondaryNameList);
+            String curTissue = defaultTissue;
+            String curSpecialTissue = defaultSpecialTissue;
+            if (tissueFactor) {
+              for (String factorInstance : secondaryNameList) {
+                if (specialTissueInfos.containsKey(factorInstance)) {
+                  TissueInfo info = specialTissueInfos.get(factorInstance);
+                  curTissue = info.getPrimary();
+                  curSpecialTissue = info.getSpecific();
+                }
               }
             }
+            String tissueCode = tissueMap.get(curTissue);
+            for (int i = first; i < first + reps[partition]; i++)
+              target.add(new OpenbisBiologicalSample(barcodes[i], spaceCode, experiment,
+                  secondaryName, "", curFactors, tissueCode, curSpecialTissue, e.getCode(),
+                  e.getQ_EXTERNALDB_ID())); // TODO ext db id
           }
-          tissueCode = tissueMap.get(tissue);
-          if (classChars.containsKey(secondaryName)) { // TODO does this seem right to you?
-            classChar = classChars.get(secondaryName);
-          } else {
-            classChar = Functions.incrementUppercase(classChar);
-            classChars.put(secondaryName, classChar);
-          }
-          List<Property> curFactors = new ArrayList<Property>(factors);
-          incrementOrCreateBarcode();
-          extracts.add(new OpenbisBiologicalSample(nextBarcode, spaceCode,
-              experiments.get(expNum).getOpenbisName(), secondaryName, "", curFactors, tissueCode,
-              specialTissue, e.getCode(), e.getQ_EXTERNALDB_ID())); // TODO
-          // ext
-          // db
-          // id
-        }
-      }
-    }
+        });
+    assignClassChars(extracts, classChars);
     return extracts;
+  }
 
+  /**
+   * Keeps track of the class letters of the conditions of new samples, in the order of the samples
+   */
+  private void assignClassChars(List<AOpenbisSample> samples, Map<String, Character> classChars) {
+    for (AOpenbisSample s : samples) {
+      String secondaryName = s.getQ_SECONDARY_NAME();
+      if (classChars.containsKey(secondaryName)) { // TODO does this seem right to you?
+        classChar = classChars.get(secondaryName);
+      } else {
+        classChar = Functions.incrementUppercase(classChar);
+        classChars.put(secondaryName, classChar);
+      }
+    }
   }
 
   private void incrementOrCreateBarcode() {
-    if (nextBarcode == null) {
-      if (firstFreeBarcode.isEmpty()) {
+    reserveBarcodes(1);
+  }
+
+  /**
+   * Hands out the next barcodes of the project
+   * 
+   * @param amount number of barcodes
+   * @return the barcodes in order, the last one is also kept as the current barcode
+   */
+  private String[] reserveBarcodes(int amount) {
+    boolean first = nextBarcode == null;
+    String[] res;
+    try {
+      res = identifiers.nextBarcodes(amount);
+    } catch (TooManySamplesException e) {
+      throw new IllegalStateException("No unused barcodes left in project " + projectCode);
+    }
+    if (amount > 0) {
+      if (first && BarcodeCodec.position(res[0]) == BarcodeCodec.firstPosition())
         classChar = 'A';
-        String base = projectCode + Functions.createCountString(1, 3) + classChar;
-        firstFreeBarcode = base + Functions.checksum(base);
-      }
-      nextBarcode = firstFreeBarcode;
-    } else {
-      nextBarcode = Functions.incrementSampleCode(nextBarcode);
+      nextBarcode = res[amount - 1];
     }
+    return res;
   }
-
   public List<AOpenbisSample> getTestPools() {
     return testPools;
   }
@@ -734,40 +762,49 @@ public class WizardDataAggregator {
 
   /**
    * Build and return a list of all possible sample preparations (test samples), using existing
-   * extracts.
+   * extracts. The test samples of different technologies and extracts are created in parallel,
+   * barcodes are reserved before.
    * 
    * @param extracts Existing (or prepared) sample extracts these test samples will be attached to
    * @param classChars Filled map of different class letters used for the extracts
    * @return List of lists of AOpenbisSamples containing test samples, sorted by different
    *         technology types
    */
-  private List<List<AOpenbisSample>> buildTestSamples(List<AOpenbisSample> extracts,
+  private List<List<AOpenbisSample>> buildTestSamples(final List<AOpenbisSample> extracts,
       Map<String, Character> classChars) {
-    List<List<AOpenbisSample>> tests = new ArrayList<List<AOpenbisSample>>();
-    for (int j = 0; j < techTypeInfo.size(); j++) {// different technologies
-      List<AOpenbisSample> techTests = new ArrayList<AOpenbisSample>();
-      int techReps = techTypeInfo.get(j).getReplicates();
-      String sampleType = techTypeInfo.get(j).getTechnology();
-      int expNum = experiments.size() - techTypeInfo.size() + j;
-      for (AOpenbisSample s : extracts) {
-        for (int i = techReps; i > 0; i--) {
-          String secondaryName = s.getQ_SECONDARY_NAME();
-          if (classChars.containsKey(secondaryName)) { // TODO see above
-            classChar = classChars.get(secondaryName);
-          } else {
-            classChar = Functions.incrementUppercase(classChar);
-            classChars.put(secondaryName, classChar);
+    final int techs = techTypeInfo.size();
+    final String[] sampleTypes = new String[techs];
+    final String[] experimentNames = new String[techs];
+    for (int j = 0; j < techs; j++) {
+      sampleTypes[j] = techTypeInfo.get(j).getTechnology();
+      experimentNames[j] = experiments.get(experiments.size() - techs + j).getOpenbisName();
+    }
+    // one partition per technology and extract, technologies first
+    final int[] reps = new int[techs * extracts.size()];
+    for (int j = 0; j < techs; j++)
+      Arrays.fill(reps, j * extracts.size(), (j + 1) * extracts.size(),
+          Math.max(0, techTypeInfo.get(j).getReplicates()));
+    final String[] barcodes = reserveBarcodes(DesignExpansion.count(reps));
+    List<AOpenbisSample> all =
+        DesignExpansion.expand(reps, new DesignExpansion.Partition<AOpenbisSample>() {
+
+          @Override
+          public void expand(int partition, int first, List<AOpenbisSample> target) {
+            int j = partition / extracts.size();
+            AOpenbisSample s = extracts.get(partition % extracts.size());
+            for (int i = first; i < first + reps[partition]; i++)
+              target.add(new OpenbisTestSample(barcodes[i], spaceCode, experimentNames[j],
+                  s.getQ_SECONDARY_NAME(), "", s.getFactors(), sampleTypes[j], s.getCode(),
+                  s.getQ_EXTERNALDB_ID())); // TODO ext db id
           }
-          incrementOrCreateBarcode();
-          techTests.add(new OpenbisTestSample(nextBarcode, spaceCode,
-              experiments.get(expNum).getOpenbisName(), secondaryName, "", s.getFactors(),
-              sampleType, s.getCode(), s.getQ_EXTERNALDB_ID()));// TODO
-          // ext
-          // db
-          // id
-        }
-      }
-      tests.add(techTests);
+        });
+    assignClassChars(all, classChars);
+    List<List<AOpenbisSample>> tests = new ArrayList<List<AOpenbisSample>>();
+    int from = 0;
+    for (int j = 0; j < techs; j++) {
+      int to = from + extracts.size() * Math.max(0, techTypeInfo.get(j).getReplicates());
+      tests.add(new ArrayList<AOpenbisSample>(all.subList(from, to)));
+      from = to;
     }
     return tests;
   }
@@ -815,13 +852,11 @@ public class WizardDataAggregator {
     List<AOpenbisSample> res = new ArrayList<AOpenbisSample>();
     String[] eSplit = entities.get(0).getExperimentIdentifierOrNull().split("/");
     String exp = eSplit[eSplit.length - 1];
-    int entityNum = firstFreeEntityID;
     for (Sample s : entities) {
       String code = s.getCode();
       if (copy) {
-        code = projectCode + "ENTITY-" + entityNum;
+        code = identifiers.nextEntity();
         oldCodesToNewCodes.put(s.getCode(), code);
-        entityNum++;
       }
       Map<String, String> p = s.getProperties();
       List<Property> factors =
@@ -996,18 +1031,9 @@ public class WizardDataAggregator {
       String code = s.getCode();
       String newCode = code;
       if (s instanceof OpenbisBiologicalEntity) {
-        newCode = projectCode + "ENTITY-" + firstFreeEntityID;
-        firstFreeEntityID++;
+        newCode = identifiers.nextEntity();
       } else {
-        if (nextBarcode == null) {
-          // classChar = 'A';
-          // nextBarcode =
-          // projectCode + Functions.createCountString(firstFreeBarcodeID, 3) + classChar;
-          // nextBarcode = nextBarcode + Functions.checksum(nextBarcode);
-          nextBarcode = firstFreeBarcode;
-        } else {
-          nextBarcode = Functions.incrementSampleCode(nextBarcode);
-        }
+        incrementOrCreateBarcode();
         newCode = nextBarcode;
       }
       copies.put(code, newCode);
@@ -1057,13 +1083,48 @@ public class WizardDataAggregator {
 
   /**
    * Creates a tab separated values file of the context created by the wizard, given that samples
-   * have been prepared in the aggregator class
+   * have been prepared in the aggregator class. The file is written in one pass to a new file in
+   * the tmp folder and encoded in UTF-8, so sessions designing the same project don't overwrite
+   * each other's files. The file written by the previous call is deleted. A fingerprint of the
+   * content is computed while writing, see {@link #getTSVDigest()}.
    * 
-   * @return
-   * @throws FileNotFoundException
-   * @throws UnsupportedEncodingException
+   * @return the written file
+   * @throws IOException
    */
-  public String createTSV() throws FileNotFoundException, UnsupportedEncodingException {
+  public File createTSV() throws IOException {
+    deleteTSV();
+    MessageDigest md;
+    try {
+      md = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    File file = File.createTempFile("tmp_" + getTSVName() + "_", ".tsv",
+        new File(ProjectwizardUI.tmpFolder));
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(
+        new DigestOutputStream(new FileOutputStream(file), md), StandardCharsets.UTF_8))) {
+      writeTSV(out);
+    }
+    this.tsvFile = file;
+    this.tsvDigest = DatatypeConverter.printHexBinary(md.digest());
+    return file;
+  }
+
+  /**
+   * @return hex encoded SHA-256 of the file written by the last call of {@link #createTSV()}, null
+   *         if there is none
+   */
+  public String getTSVDigest() {
+    return tsvDigest;
+  }
+
+  /**
+   * Writes the tab separated values of the context created by the wizard
+   * 
+   * @param out writer the lines are written to
+   * @throws IOException
+   */
+  public void writeTSV(Writer out) throws IOException {
     List<AOpenbisSample> samples = new ArrayList<AOpenbisSample>();
     samples.addAll(entities);
     samples.addAll(extracts);
@@ -1074,7 +1135,6 @@ public class WizardDataAggregator {
       samples.addAll(msSamples);// TODO test
     if (mhcExtracts != null)
       samples.addAll(mhcExtracts);
-    List<String> rows = new ArrayList<String>();
 
     List<String> header = new ArrayList<String>(Arrays.asList("SAMPLE TYPE", "SPACE", "EXPERIMENT",
         "Q_SECONDARY_NAME", "PARENT", "Q_PRIMARY_TISSUE", "Q_TISSUE_DETAILED", "Q_ADDITIONAL_INFO",
@@ -1095,22 +1155,21 @@ public class WizardDataAggregator {
     String contact = s1.getPerson(PersonType.Contact);
     String manager = s1.getPerson(PersonType.Manager);
 
-    String result = "";
     description = description.replace("\n", "\n#");
     secondaryName = secondaryName.replace("\n", " - ");
-    result += "#PROJECT_DESCRIPTION=" + description + "\n";
-    result += "#ALTERNATIVE_NAME=" + secondaryName + "\n";
+    out.write("#PROJECT_DESCRIPTION=" + description + "\n");
+    out.write("#ALTERNATIVE_NAME=" + secondaryName + "\n");
     if (s1.isPilot())
-      result += "#PILOT PROJECT\n";
-    result += "#INVESTIGATOR=" + investigator + "\n";
-    result += "#CONTACT=" + contact + "\n";
-    result += "#MANAGER=" + manager + "\n";
+      out.write("#PILOT PROJECT\n");
+    out.write("#INVESTIGATOR=" + investigator + "\n");
+    out.write("#CONTACT=" + contact + "\n");
+    out.write("#MANAGER=" + manager + "\n");
 
     // TODO reuse this in the refactored version, it's not stupid
     if (experiments != null) {
       for (OpenbisExperiment e : experiments) {
         if (informativeExpTypes.contains(e.getType()) || e.containsProperties()) {
-          result += e.getPropertiesString() + "\n";
+          out.write(e.getPropertiesString() + "\n");
         }
       }
     }
@@ -1123,55 +1182,50 @@ public class WizardDataAggregator {
       header.add("Q_MHC_CLASS");
     }
 
-    String headerLine = "Identifier";
-    for (String col : header)
-      headerLine += "\t" + col;
-
+    out.write("Identifier");
+    for (String col : header) {
+      out.write('\t');
+      out.write(col);
+    }
     for (Property f : a.getFactors()) {
       String label = f.getLabel();
       switch (f.getType()) {
         case Factor:
-          headerLine += "\tCondition: " + label;
+          out.write("\tCondition: " + label);
           break;
         case Property:
-          headerLine += "\tProperty: " + label;
+          out.write("\tProperty: " + label);
           break;
         default:
           break;
       }
     }
+    out.write('\n');
     for (AOpenbisSample s : samples) {
       String code = s.getCode();
       if (isEntity(code) || Functions.isQbicBarcode(code)
           || Functions.isMeasurementOfBarcode(code, s.getValueMap().get("SAMPLE TYPE"))) {
         Map<String, String> data = s.getValueMap();
-        String row = s.getCode();
         List<String> factors = s.getFactorStringsWithoutLabel();
+        out.write(code);
         for (String col : header) {
-          String val = "";
-          if (data.containsKey(col))
-            val = data.get(col);
-          if (val == null)
-            val = "";
-          row += "\t" + val;
+          String val = data.get(col);
+          out.write('\t');
+          if (val != null)
+            out.write(val);
         }
-        for (int i = 0; i < factors.size(); i++)
-          row += "\t" + factors.get(i);
-        for (int i = factors.size(); i < factorRowSize; i++) {
-          row += "\t";
+        for (int i = 0; i < factors.size(); i++) {
+          out.write('\t');
+          out.write(factors.get(i));
         }
-        rows.add(row);
+        for (int i = factors.size(); i < factorRowSize; i++)
+          out.write('\t');
+        out.write('\n');
       } else {
         logger.warn(
             code + " will be ignored, it is not a valid QBiC barcode registerable by the wizard.");
       }
     }
-    result += headerLine + "\n";
-    for (String line : rows) {
-      result += line + "\n";
-    }
-    this.tsvContent = result;
-    return result;
   }
 
   // TODO should be parsed from the tsv?
@@ -1191,28 +1245,51 @@ public class WizardDataAggregator {
     return code.matches(pattern);
   }
 
-  public File getTSV() throws FileNotFoundException, UnsupportedEncodingException {
-    String file = ProjectwizardUI.tmpFolder + "tmp_" + getTSVName() + ".tsv";
-    PrintWriter writer = new PrintWriter(file, "UTF-8");
-    for (String line : tsvContent.split("\n")) {
-      writer.println(line);
+  /**
+   * @return the file written by the last call of {@link #createTSV()}
+   */
+  public File getTSV() {
+    return tsvFile;
+  }
+
+  /**
+   * Deletes the file written by the last call of {@link #createTSV()}, e.g. when the wizard is
+   * reset
+   */
+  public void deleteTSV() {
+    if (tsvFile != null) {
+      if (!tsvFile.delete() && tsvFile.exists())
+        logger.warn("Could not delete tsv file " + tsvFile);
+      tsvFile = null;
+      tsvDigest = null;
     }
-    writer.close();
-    return new File(file);
   }
 
   public String getTSVName() {
     return spaceCode + "_" + projectCode;
   }
 
-  public String getTSVContent() {
-    return tsvContent;
+  /**
+   * Writes the tsv of the current design to a string, without touching the disk. Use
+   * {@link #createTSV()} for large designs, this keeps the whole tsv in memory.
+   * 
+   * @return content of the tsv
+   * @throws IOException
+   */
+  public String getTSVContent() throws IOException {
+    StringWriter out = new StringWriter();
+    writeTSV(out);
+    return out.toString();
   }
 
   public List<AOpenbisSample> getEntities() {
     return entities;
   }
 
+  public List<AOpenbisSample> getExtracts() {
+    return extracts;
+  }
+
   public void parseAll() throws JAXBException {
     prepareBasics();
     factorMap = new HashMap<String, Property>();
@@ -1222,7 +1299,7 @@ public class WizardDataAggregator {
     List<Sample> openbisTests = new ArrayList<Sample>();
 
     List<Sample> allSamples =
-        openbis.getSamplesWithParentsAndChildrenOfProjectBySearchService(projectCode);
+        ProjectSampleCache.Instance.getSamplesWithParentsAndChildren(openbis, projectCode);
     for (Sample sa : allSamples) {
       String type = sa.getSampleTypeCode();
       switch (type) {
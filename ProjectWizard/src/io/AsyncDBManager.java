@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import logging.Log4j2Logger;
+import model.Printer;
+
+/**
+ * Runs queries of a {@link DBManager} on a small shared pool, so UI listeners don't wait for a slow
+ * or unreachable person database. Queries return futures, the blocking variants wait until a
+ * deadline and return cached or given fallback values instead. While the database is failing,
+ * the circuit breaker of the connection pool refuses queries and fallbacks are returned right away.
+ *
+ * @author agent
+ *
+ */
+public class AsyncDBManager {
+
+  public static final long DEFAULT_TIMEOUT_MILLIS = 3000;
+  private static final int POOL_SIZE = 4;
+  private static final int QUEUE_SIZE = 100;
+
+  private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60,
+      TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "person-db-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  static {
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  logging.Logger logger = new Log4j2Logger(AsyncDBManager.class);
+
+  private final DBManager dbm;
+  private long timeout = DEFAULT_TIMEOUT_MILLIS;
+
+  public AsyncDBManager(DBManager dbm) {
+    this.dbm = dbm;
+  }
+
+  /**
+   * Sets the time the blocking variants wait for a query before using the fallback
+   *
+   * @param millis timeout in milliseconds
+   */
+  public void setTimeout(long millis) {
+    this.timeout = millis;
+  }
+
+  public DBManager getDBManager() {
+    return dbm;
+  }
+
+  /**
+   * Runs a query on the pool
+   *
+   * @param query the query, usually calling the {@link DBManager}
+   * @return future of the result
+   * @throws RejectedExecutionException if too many queries are waiting
+   */
+  public <T> Future<T> submit(Callable<T> query) {
+    return pool.submit(query);
+  }
+
+  public Future<Map<String, String>> getProjectNamesOfSpaceAsync(final String space) {
+    return submit(new Callable<Map<String, String>>() {
+      @Override
+      public Map<String, String> call() {
+        return dbm.getProjectNamesOfSpace(space);
+      }
+    });
+  }
+
+  /**
+   * Returns the project names of a space, or the last known names if the database does not answer
+   * in time
+   *
+   * @param space code of the openBIS space
+   * @return map of project identifiers (/SPACE/PROJECT) to their short titles
+   */
+  public Map<String, String> getProjectNamesOfSpace(final String space) {
+    Callable<Map<String, String>> query = new Callable<Map<String, String>>() {
+      @Override
+      public Map<String, String> call() {
+        return dbm.getProjectNamesOfSpace(space);
+      }
+    };
+    return call(query, dbm.getKnownProjectNamesOfSpace(space), "project names of " + space);
+  }
+
+  public Future<Map<String, Integer>> fetchPeopleAsync() {
+    return submit(new Callable<Map<String, Integer>>() {
+      @Override
+      public Map<String, Integer> call() {
+        return dbm.fetchPeople();
+      }
+    });
+  }
+
+  /**
+   * Returns the active people, or the given people if the database does not answer in time
+   *
+   * @param known people to use if the database is unavailable
+   * @return names of active people mapped to their ids
+   */
+  public Map<String, Integer> fetchPeople(Map<String, Integer> known) {
+    Map<String, Integer> fallback = new HashMap<String, Integer>();
+    if (known != null)
+      fallback.putAll(known);
+    if (fallback.isEmpty())
+      fallback.put("No Connection", -1);
+    Callable<Map<String, Integer>> query = new Callable<Map<String, Integer>>() {
+      @Override
+      public Map<String, Integer> call() {
+        return dbm.fetchPeople();
+      }
+    };
+    return call(query, fallback, "people");
+  }
+
+  /**
+   * Returns the printers of a project, or no printers if the database does not answer in time
+   *
+   * @param project project code or identifier
+   * @return printers of the project
+   */
+  public Set<Printer> getPrintersForProject(final String project) {
+    Callable<Set<Printer>> query = new Callable<Set<Printer>>() {
+      @Override
+      public Set<Printer> call() {
+        return dbm.getPrintersForProject(project);
+      }
+    };
+    return call(query, new LinkedHashSet<Printer>(), "printers of " + project);
+  }
+
+  private <T> T call(Callable<T> query, T fallback, String what) {
+    if (!dbm.isAvailable()) {
+      logger.warn("Person database is unavailable, using fallback for " + what);
+      return fallback;
+    }
+    Future<T> future;
+    try {
+      future = submit(query);
+    } catch (RejectedExecutionException e) {
+      logger.warn("Too many queries waiting, using fallback for " + what);
+      return fallback;
+    }
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      logger.warn("Loading " + what + " took longer than " + timeout + " ms, using fallback.");
+    } catch (ExecutionException e) {
+      logger.error("Loading " + what + " failed, using fallback.", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return fallback;
+  }
+
+}
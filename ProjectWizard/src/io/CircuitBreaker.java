@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import logging.Log4j2Logger;
+
+/**
+ * Stops calls to a service that keeps failing. After a number of failures in a row the breaker
+ * opens and calls are refused right away instead of waiting for timeouts. After a while one trial
+ * call is let through: if it succeeds the breaker closes again, otherwise it stays open.
+ *
+ * @author agent
+ *
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  logging.Logger logger = new Log4j2Logger(CircuitBreaker.class);
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openMillis;
+  private State state = State.CLOSED;
+  private int failures = 0;
+  private long openedAt = 0;
+
+  /**
+   * @param name name of the guarded service, used in logs
+   * @param failureThreshold number of failures in a row that open the breaker
+   * @param openMillis time the breaker stays open before a trial call is allowed
+   */
+  public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+    this.name = name;
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * Checks if a call may be made. If the breaker has been open long enough, this call becomes the
+   * trial call and has to report its result.
+   *
+   * @return true if the call may be made
+   */
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - openedAt >= openMillis) {
+          state = State.HALF_OPEN;
+          logger.info(name + ": trying again.");
+          return true;
+        }
+        return false;
+      default:
+        // the trial call is still running
+        return false;
+    }
+  }
+
+  /**
+   * @return true if calls are currently refused, without starting a trial call
+   */
+  public synchronized boolean isOpen() {
+    return state == State.HALF_OPEN
+        || (state == State.OPEN && System.currentTimeMillis() - openedAt < openMillis);
+  }
+
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED)
+      logger.info(name + " is available again.");
+    state = State.CLOSED;
+    failures = 0;
+  }
+
+  public synchronized void recordFailure() {
+    failures++;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+      logger.warn(name + " failed " + failures + " times in a row, refusing calls for "
+          + openMillis + " ms.");
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Reports a call that failed for a reason that says nothing about the service, e.g. a local
+   * timeout. Failures in a row are not reset, but a trial call ending like this lets the next call
+   * try again.
+   */
+  public synchronized void recordInconclusive() {
+    if (state == State.HALF_OPEN)
+      state = State.OPEN;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+}
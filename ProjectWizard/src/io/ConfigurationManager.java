@@ -50,6 +50,10 @@ public interface ConfigurationManager {
 
   public String getAttachmentMaxSize();
 
+  public String getMaxTierSamples();
+
+  public String getMaxDesignSamples();
+
   public String getMysqlHost();
 
   public String getMysqlPort();
@@ -60,6 +64,14 @@ public interface ConfigurationManager {
 
   public String getMysqlPass();
 
+  public String getMysqlPoolMinIdle();
+
+  public String getMysqlPoolMax();
+
+  public String getMysqlLeakDetectionMillis();
+
+  public String getMysqlStatementCacheSize();
+
   public String getBarcodeResultsFolder();
 
   public String getMetadataWriteGrp();
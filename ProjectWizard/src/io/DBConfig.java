@@ -25,6 +25,12 @@ public class DBConfig {
   private String username;
   private String password;
 
+  // connection pool settings
+  private int minIdleConnections = 2;
+  private int maxConnections = 10;
+  private long leakDetectionMillis = 60 * 1000;
+  private int statementCacheSize = 100;
+
   public DBConfig(String hostname, String port, String sql_database, String username,
       String password) {
     this.hostname = hostname;
@@ -54,6 +60,46 @@ public class DBConfig {
     return password;
   }
 
+  /**
+   * Sets how many connections the pool keeps open when idle and how many it opens at most (at
+   * least one)
+   */
+  public void setPoolSize(int minIdle, int max) {
+    this.maxConnections = Math.max(1, max);
+    this.minIdleConnections = Math.min(minIdle, maxConnections);
+  }
+
+  public int getMinIdleConnections() {
+    return minIdleConnections;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Sets after how long a borrowed connection that was not returned is logged as possible leak. 0
+   * disables leak detection.
+   */
+  public void setLeakDetectionMillis(long millis) {
+    this.leakDetectionMillis = millis;
+  }
+
+  public long getLeakDetectionMillis() {
+    return leakDetectionMillis;
+  }
+
+  /**
+   * Sets the number of prepared statements cached per connection. 0 disables the cache.
+   */
+  public void setStatementCacheSize(int size) {
+    this.statementCacheSize = size;
+  }
+
+  public int getStatementCacheSize() {
+    return statementCacheSize;
+  }
+
 
 
 }
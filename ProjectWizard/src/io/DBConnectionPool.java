@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import logging.Log4j2Logger;
+
+/**
+ * Keeps a Hikari connection pool and a circuit breaker per person database. Every UI creates its
+ * own {@link DBManager}, but all of them borrow connections from the pool for their database, so
+ * queries don't pay for opening a new connection. If the database can't be reached repeatedly,
+ * the breaker refuses connections for a while instead of letting every query wait for a timeout.
+ *
+ * @author agent
+ *
+ */
+public enum DBConnectionPool {
+  Instance;
+
+  private static final String VALIDATION_QUERY = "SELECT 1";
+  private static final long CONNECTION_TIMEOUT_MILLIS = 10 * 1000;
+  private static final int BREAKER_FAILURES = 3;
+  private static final long BREAKER_OPEN_MILLIS = 30 * 1000;
+
+  logging.Logger logger = new Log4j2Logger(DBConnectionPool.class);
+
+  private final Map<String, HikariDataSource> pools = new HashMap<String, HikariDataSource>();
+  private final Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+
+  /**
+   * Borrows a connection from the pool of the configured database. Closing the connection returns
+   * it to the pool.
+   *
+   * @param config database configuration, the pool settings of the first config for a database
+   *        are used
+   * @return an open connection
+   * @throws SQLException if no connection could be obtained in time or the database could not be
+   *         reached repeatedly and is not tried right now
+   */
+  public Connection getConnection(DBConfig config) throws SQLException {
+    CircuitBreaker breaker = getBreaker(config);
+    if (!breaker.allowRequest())
+      throw new SQLException("Person database is unavailable, not trying to connect.");
+    try {
+      Connection conn = getDataSource(config).getConnection();
+      breaker.recordSuccess();
+      return conn;
+    } catch (SQLException e) {
+      if (isConnectionFailure(e))
+        breaker.recordFailure();
+      else
+        breaker.recordInconclusive();
+      throw e;
+    }
+  }
+
+  /**
+   * Only failures to reach or log in to the database count for the circuit breaker. If the pool is
+   * just exhausted, Hikari throws an SQLTransientConnectionException without SQL state or cause
+   * after the connection timeout. That means other users hold all connections, not that the
+   * database is down, so it must not open the breaker. If the pool could not open new connections
+   * in the meantime, Hikari attaches the last connection error as cause and copies its SQL state.
+   * Connection errors have SQL state class 08, failed logins class 28.
+   *
+   * @param e exception thrown while getting a connection
+   * @return true if the exception means the database can't be reached
+   */
+  static boolean isConnectionFailure(SQLException e) {
+    Throwable t = e;
+    while (t != null) {
+      if (t instanceof SQLException) {
+        String state = ((SQLException) t).getSQLState();
+        if (state != null && (state.startsWith("08") || state.startsWith("28")))
+          return true;
+      } else if (t instanceof IOException)
+        // e.g. ConnectException or UnknownHostException wrapped by the driver
+        return true;
+      t = t.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * @return false if the configured database failed repeatedly and calls are refused
+   */
+  public boolean isAvailable(DBConfig config) {
+    return !getBreaker(config).isOpen();
+  }
+
+  /**
+   * Closes all pools, e.g. when the application is undeployed
+   */
+  public synchronized void shutdown() {
+    for (HikariDataSource ds : pools.values())
+      ds.close();
+    pools.clear();
+    breakers.clear();
+  }
+
+  private synchronized CircuitBreaker getBreaker(DBConfig config) {
+    String key = getKey(config);
+    CircuitBreaker breaker = breakers.get(key);
+    if (breaker == null) {
+      breaker = new CircuitBreaker("Person database " + config.getHostname(), BREAKER_FAILURES,
+          BREAKER_OPEN_MILLIS);
+      breakers.put(key, breaker);
+    }
+    return breaker;
+  }
+
+  private String getURL(DBConfig config) {
+    return "jdbc:mariadb://" + config.getHostname() + ":" + config.getPort() + "/"
+        + config.getSql_database();
+  }
+
+  private String getKey(DBConfig config) {
+    return config.getUsername() + "@" + getURL(config);
+  }
+
+  private synchronized HikariDataSource getDataSource(DBConfig config) {
+    String url = getURL(config);
+    String key = getKey(config);
+    HikariDataSource ds = pools.get(key);
+    if (ds == null) {
+      HikariConfig hc = new HikariConfig();
+      hc.setPoolName("person-db-" + (pools.size() + 1));
+      hc.setDriverClassName("org.mariadb.jdbc.Driver");
+      hc.setJdbcUrl(url);
+      hc.setUsername(config.getUsername());
+      hc.setPassword(config.getPassword());
+      hc.setMinimumIdle(config.getMinIdleConnections());
+      hc.setMaximumPoolSize(config.getMaxConnections());
+      hc.setConnectionTestQuery(VALIDATION_QUERY);
+      hc.setConnectionTimeout(CONNECTION_TIMEOUT_MILLIS);
+      hc.setLeakDetectionThreshold(config.getLeakDetectionMillis());
+      // the wizard starts without the person database, so don't fail if it is down right now
+      hc.setInitializationFailFast(false);
+      if (config.getStatementCacheSize() > 0) {
+        hc.addDataSourceProperty("cachePrepStmts", "true");
+        hc.addDataSourceProperty("prepStmtCacheSize", config.getStatementCacheSize());
+        hc.addDataSourceProperty("useServerPrepStmts", "true");
+      }
+      ds = new HikariDataSource(hc);
+      pools.put(key, ds);
+      logger.info("Created connection pool for " + url + " with " + config.getMinIdleConnections()
+          + " to " + config.getMaxConnections() + " connections.");
+    }
+    return ds;
+  }
+
+}
@@ -18,7 +18,6 @@ package io;
 
 import java.io.File;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -26,6 +25,7 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -39,6 +39,56 @@ public class DBManager {
   private DBConfig config;
 
   logging.Logger logger = new Log4j2Logger(DBManager.class);
+  // project names per space, shared by all UIs
+  private static final ProjectNameCache projectNames = new ProjectNameCache();
+
+  /**
+   * Small cache of the project names of recently selected spaces
+   */
+  private static class ProjectNameCache {
+    private static final int MAX_SPACES = 50;
+    private static final long TTL_MILLIS = 2 * 60 * 1000;
+
+    private static class Entry {
+      private final long loaded = System.currentTimeMillis();
+      private final Map<String, String> names;
+
+      private Entry(Map<String, String> names) {
+        this.names = new HashMap<String, String>(names);
+      }
+    }
+
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_SPACES;
+          }
+        };
+
+    synchronized Map<String, String> get(String space) {
+      Entry e = entries.get(space);
+      if (e == null)
+        return null;
+      // expired names are kept as fallback while the database is unavailable
+      if (System.currentTimeMillis() - e.loaded > TTL_MILLIS)
+        return null;
+      return new HashMap<String, String>(e.names);
+    }
+
+    synchronized Map<String, String> getKnown(String space) {
+      Entry e = entries.get(space);
+      return e == null ? null : new HashMap<String, String>(e.names);
+    }
+
+    synchronized void put(String space, Map<String, String> names) {
+      entries.put(space, new Entry(names));
+    }
+
+    synchronized void invalidate(String space) {
+      entries.remove(space);
+    }
+  }
 
   public DBManager(DBConfig config) {
     this.config = config;
@@ -54,18 +104,22 @@ public class DBManager {
     }
   }
 
-  private Connection login() {
-    String DB_URL = "jdbc:mariadb://" + config.getHostname() + ":" + config.getPort() + "/"
-        + config.getSql_database();
+  /**
+   * @return false if the person database failed repeatedly and is not tried right now
+   */
+  public boolean isAvailable() {
+    return DBConnectionPool.Instance.isAvailable(config);
+  }
 
+  /**
+   * Borrows a connection from the shared pool. {@link #logout(Connection)} returns it.
+   */
+  private Connection login() {
     Connection conn = null;
-
     try {
-      Class.forName("org.mariadb.jdbc.Driver");
-      conn = DriverManager.getConnection(DB_URL, config.getUsername(), config.getPassword());
-    } catch (Exception e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
+      conn = DBConnectionPool.Instance.getConnection(config);
+    } catch (SQLException e) {
+      logger.error("Could not get a database connection: " + e.getMessage());
     }
     return conn;
   }
@@ -124,6 +178,60 @@ public class DBManager {
     return res;
   }
 
+  /**
+   * Returns the short titles of all projects of a space that are known to the person database,
+   * using a single query. Results are cached for a short while.
+   * 
+   * @param space code of the openBIS space
+   * @return map of project identifiers (/SPACE/PROJECT) to their short titles
+   */
+  public Map<String, String> getProjectNamesOfSpace(String space) {
+    Map<String, String> res = projectNames.get(space);
+    if (res != null)
+      return res;
+    String prefix = "/" + space + "/";
+    // escape LIKE wildcards, underscores are common in space codes
+    String pattern =
+        prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    String sql = "SELECT openbis_project_identifier, short_title from projects "
+        + "WHERE openbis_project_identifier LIKE ?";
+    res = new HashMap<String, String>();
+    Connection conn = login();
+    try (PreparedStatement statement = conn.prepareStatement(sql)) {
+      statement.setString(1, pattern);
+      ResultSet rs = statement.executeQuery();
+      while (rs.next()) {
+        String id = rs.getString(1);
+        if (id != null && id.startsWith(prefix))
+          res.put(id, rs.getString(2));
+      }
+      projectNames.put(space, res);
+    } catch (SQLException e) {
+      logger.error("SQL operation unsuccessful: " + e.getMessage());
+      e.printStackTrace();
+    } catch (NullPointerException n) {
+      logger.error("Could not reach SQL database, resuming without project names.");
+    }
+    logout(conn);
+    return new HashMap<String, String>(res);
+  }
+
+  /**
+   * Returns the last project names loaded for a space, even if they are outdated
+   * 
+   * @param space code of the openBIS space
+   * @return map of project identifiers to their short titles, empty if none were loaded
+   */
+  public Map<String, String> getKnownProjectNamesOfSpace(String space) {
+    Map<String, String> res = projectNames.getKnown(space);
+    return res == null ? new HashMap<String, String>() : res;
+  }
+
+  private String getSpace(String projectIdentifier) {
+    String[] split = projectIdentifier.split("/");
+    return split.length > 1 ? split[1] : projectIdentifier;
+  }
+
   public int isProjectInDB(String projectIdentifier) {
     logger.info("Looking for project " + projectIdentifier + " in the DB");
     String sql = "SELECT * from projects WHERE openbis_project_identifier = ?";
@@ -145,33 +253,6 @@ public class DBManager {
     return res;
   }
 
-  public int addProjectToDB(String projectIdentifier, String projectName) {
-    int exists = isProjectInDB(projectIdentifier);
-    if (exists < 0) {
-      logger.info("Trying to add project " + projectIdentifier + " to the person DB");
-      String sql = "INSERT INTO projects (openbis_project_identifier, short_title) VALUES(?, ?)";
-      Connection conn = login();
-      try (PreparedStatement statement =
-          conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-        statement.setString(1, projectIdentifier);
-        statement.setString(2, projectName);
-        statement.execute();
-        ResultSet rs = statement.getGeneratedKeys();
-        if (rs.next()) {
-          logout(conn);
-          logger.info("Successful.");
-          return rs.getInt(1);
-        }
-      } catch (SQLException e) {
-        logger.error("SQL operation unsuccessful: " + e.getMessage());
-        e.printStackTrace();
-      }
-      logout(conn);
-      return -1;
-    }
-    return exists;
-  }
-
   public boolean hasPersonRoleInProject(int personID, int projectID, String role) {
     logger.info("Checking if person already has this role in the project.");
     String sql =
@@ -217,16 +298,12 @@ public class DBManager {
     }
   }
 
-  /**
-   * returns a map of principal investigator first+last names along with the pi_id. only returns
-   * active investigators
-   * 
-   * @return
-   */
-  public Map<String, Integer> getPrincipalInvestigatorsWithIDs() {
+  Map<String, Integer> loadActivePeople() throws SQLException {
     String sql = "SELECT id, first_name, family_name FROM persons WHERE active = 1";
     Map<String, Integer> res = new HashMap<String, Integer>();
     Connection conn = login();
+    if (conn == null)
+      throw new SQLException("Could not reach SQL database.");
     try (PreparedStatement statement = conn.prepareStatement(sql)) {
       ResultSet rs = statement.executeQuery();
       while (rs.next()) {
@@ -235,14 +312,31 @@ public class DBManager {
         String last = rs.getString("family_name");
         res.put(first + " " + last, pi_id);
       }
-      statement.close();
-    } catch (SQLException e) {
-      e.printStackTrace();
+    } finally {
+      logout(conn);
     }
-    logout(conn);
     return res;
   }
 
+  /**
+   * @return a short description of the active people that changes when people are added,
+   *         (de)activated or removed
+   */
+  String getPeopleFingerprint() throws SQLException {
+    String sql = "SELECT COUNT(*), COALESCE(MAX(id), 0), COALESCE(SUM(id), 0) FROM persons "
+        + "WHERE active = 1";
+    Connection conn = login();
+    if (conn == null)
+      throw new SQLException("Could not reach SQL database.");
+    try (PreparedStatement statement = conn.prepareStatement(sql)) {
+      ResultSet rs = statement.executeQuery();
+      rs.next();
+      return "count " + rs.getLong(1) + ", max id " + rs.getLong(2) + ", id sum " + rs.getLong(3);
+    } finally {
+      logout(conn);
+    }
+  }
+
   public int addExperimentToDB(String id) {
     int exists = isExpInDB(id);
     if (exists < 0) {
@@ -254,8 +348,9 @@ public class DBManager {
         statement.execute();
         ResultSet rs = statement.getGeneratedKeys();
         if (rs.next()) {
+          int expID = rs.getInt(1);
           logout(conn);
-          return rs.getInt(1);
+          return expID;
         }
       } catch (SQLException e) {
         logger.error("Was trying to add experiment " + id + " to the person DB");
@@ -337,114 +432,233 @@ public class DBManager {
     return res;
   }
 
-  private void endQuery(Connection c, PreparedStatement p) {
-    if (p != null)
-      try {
-        p.close();
-      } catch (Exception e) {
-        logger.error("PreparedStatement close problem");
-      }
-    if (c != null)
+  /**
+   * Adds a project, the roles of its people, its experiments and their contacts to the database in
+   * one transaction. Existing rows are kept, so this can be called again for projects that are
+   * already known. Rows are inserted with a few batched statements that skip existing entries
+   * instead of checking each entry on its own connection. Roles of people without an id are
+   * skipped.
+   * <p>
+   * The tables have no unique keys on the identifiers, so two transactions adding the same project
+   * at the same moment can both insert it. Unique keys on the identifier and role columns would
+   * prevent these duplicates.
+   * 
+   * @param projectIdentifier openBIS identifier of the project (/SPACE/PROJECT)
+   * @param projectName short title of the project, only used if the project is new
+   * @param projectRoles person ids of the project roles (e.g. PI, Contact, Manager)
+   * @param experimentContacts openBIS identifiers of experiments mapped to the person id of their
+   *        contact, or -1 if there is none
+   * @return the id of the project
+   * @throws SQLException if the database can't be reached or the transaction failed, in which case
+   *         nothing was written
+   */
+  public int addProjectWithExperimentsToDB(String projectIdentifier, String projectName,
+      Map<String, Integer> projectRoles, Map<String, Integer> experimentContacts)
+      throws SQLException {
+    Connection conn = login();
+    if (conn == null)
+      throw new SQLException("Could not reach SQL database.");
+    logger.info("Adding project " + projectIdentifier + " with " + experimentContacts.size()
+        + " experiments to the person DB");
+    try {
+      conn.setAutoCommit(false);
+      int projectID = insertProject(conn, projectIdentifier, projectName);
+      insertProjectRoles(conn, projectID, projectRoles);
+      Map<String, Integer> expIDs = insertExperiments(conn, experimentContacts.keySet());
+      insertExperimentContacts(conn, expIDs, experimentContacts);
+      conn.commit();
+      projectNames.invalidate(getSpace(projectIdentifier));
+      logger.info("Successful.");
+      return projectID;
+    } catch (SQLException e) {
+      logger.error("SQL operation unsuccessful, rolling back: " + e.getMessage());
       try {
-        logout(c);
-      } catch (Exception e) {
-        logger.error("Database Connection close problem");
+        conn.rollback();
+      } catch (SQLException r) {
+        logger.error("Rollback failed: " + r.getMessage());
       }
+      throw e;
+    } finally {
+      // the pool resets auto-commit when the connection is returned
+      logout(conn);
+    }
   }
 
-  public Set<Printer> getPrintersForProject(String project) {
-    Set<Printer> res = new HashSet<Printer>();
-    String sql =
-        "SELECT projects.*, printer_project_association.*, labelprinter.* FROM projects, printer_project_association, labelprinter WHERE projects.openbis_project_identifier LIKE ?"
-            + " AND projects.id = printer_project_association.project_id";
-    Connection conn = login();
-    PreparedStatement statement = null;
-    try {
-      statement = conn.prepareStatement(sql);
-      statement.setString(1, "%" + project);
+  private int insertProject(Connection conn, String projectIdentifier, String projectName)
+      throws SQLException {
+    String insert = "INSERT INTO projects (openbis_project_identifier, short_title) "
+        + "SELECT ?, ? FROM DUAL WHERE NOT EXISTS "
+        + "(SELECT 1 FROM projects WHERE openbis_project_identifier = ?)";
+    try (PreparedStatement statement = conn.prepareStatement(insert)) {
+      statement.setString(1, projectIdentifier);
+      statement.setString(2, projectName);
+      statement.setString(3, projectIdentifier);
+      statement.executeUpdate();
+    }
+    String select = "SELECT id FROM projects WHERE openbis_project_identifier = ?";
+    try (PreparedStatement statement = conn.prepareStatement(select)) {
+      statement.setString(1, projectIdentifier);
       ResultSet rs = statement.executeQuery();
+      if (rs.next())
+        return rs.getInt(1);
+    }
+    throw new SQLException("Project " + projectIdentifier + " was not added.");
+  }
 
-      while (rs.next()) {
-        String location = rs.getString("location");
-        String name = rs.getString("name");
-        String ip = rs.getString("url");
-        PrinterType type = PrinterType.fromString(rs.getString("type"));
-        boolean adminOnly = rs.getBoolean("admin_only");
-        if (!adminOnly)
-          res.add(new Printer(location, name, ip, type, adminOnly));
+  private void insertProjectRoles(Connection conn, int projectID, Map<String, Integer> roles)
+      throws SQLException {
+    if (roles.isEmpty())
+      return;
+    String sql = "INSERT INTO projects_persons (project_id, person_id, project_role) "
+        + "SELECT ?, ?, ? FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM projects_persons "
+        + "WHERE project_id = ? AND person_id = ? AND project_role = ?)";
+    try (PreparedStatement statement = conn.prepareStatement(sql)) {
+      boolean empty = true;
+      for (Map.Entry<String, Integer> role : roles.entrySet()) {
+        // e.g. a person that was removed from the database while the project was designed
+        if (role.getValue() == null || role.getValue() < 1) {
+          logger.warn("Unknown person for role " + role.getKey() + ", role is not added.");
+          continue;
+        }
+        for (int offset : new int[] {0, 3}) {
+          statement.setInt(offset + 1, projectID);
+          statement.setInt(offset + 2, role.getValue());
+          statement.setString(offset + 3, role.getKey());
+        }
+        statement.addBatch();
+        empty = false;
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-      logout(conn);
-    } finally {
-      endQuery(conn, statement);
+      if (!empty)
+        statement.executeBatch();
     }
+  }
 
-    sql = "SELECT * FROM labelprinter";
-    conn = login();
-    statement = null;
-    try {
-      statement = conn.prepareStatement(sql);
+  /**
+   * @return ids of the experiments, including those that existed before
+   */
+  private Map<String, Integer> insertExperiments(Connection conn, Set<String> identifiers)
+      throws SQLException {
+    Map<String, Integer> res = new HashMap<String, Integer>();
+    if (identifiers.isEmpty())
+      return res;
+    String insert = "INSERT INTO experiments (openbis_experiment_identifier) "
+        + "SELECT ? FROM DUAL WHERE NOT EXISTS "
+        + "(SELECT 1 FROM experiments WHERE openbis_experiment_identifier = ?)";
+    try (PreparedStatement statement = conn.prepareStatement(insert)) {
+      for (String id : identifiers) {
+        statement.setString(1, id);
+        statement.setString(2, id);
+        statement.addBatch();
+      }
+      statement.executeBatch();
+    }
+    StringBuilder select = new StringBuilder(
+        "SELECT id, openbis_experiment_identifier FROM experiments WHERE "
+            + "openbis_experiment_identifier IN (");
+    for (int i = 0; i < identifiers.size(); i++)
+      select.append(i == 0 ? "?" : ", ?");
+    select.append(")");
+    try (PreparedStatement statement = conn.prepareStatement(select.toString())) {
+      int i = 1;
+      for (String id : identifiers)
+        statement.setString(i++, id);
       ResultSet rs = statement.executeQuery();
+      while (rs.next())
+        res.put(rs.getString(2), rs.getInt(1));
+    }
+    return res;
+  }
+
+  private void insertExperimentContacts(Connection conn, Map<String, Integer> expIDs,
+      Map<String, Integer> contacts) throws SQLException {
+    String sql = "INSERT INTO experiments_persons (experiment_id, person_id, experiment_role) "
+        + "SELECT ?, ?, ? FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM experiments_persons "
+        + "WHERE experiment_id = ? AND person_id = ? AND experiment_role = ?)";
+    try (PreparedStatement statement = conn.prepareStatement(sql)) {
+      boolean empty = true;
+      for (Map.Entry<String, Integer> contact : contacts.entrySet()) {
+        Integer expID = expIDs.get(contact.getKey());
+        if (expID == null || expID == 0 || contact.getValue() == null || contact.getValue() < 1)
+          continue;
+        for (int offset : new int[] {0, 3}) {
+          statement.setInt(offset + 1, expID);
+          statement.setInt(offset + 2, contact.getValue());
+          statement.setString(offset + 3, "Contact");
+        }
+        statement.addBatch();
+        empty = false;
+      }
+      if (!empty)
+        statement.executeBatch();
+    }
+  }
+
+  /**
+   * Returns the printers that can be used for a project, see {@link PrinterRegistry}
+   * 
+   * @param project project code or identifier
+   * @return printers assigned to the project and printers available to admins
+   */
+  public Set<Printer> getPrintersForProject(String project) {
+    return PrinterRegistry.Instance.getPrintersForProject(this, project);
+  }
 
+  /**
+   * Loads all label printers and their project assignments using one connection
+   * 
+   * @param printers filled with the printers by their id
+   * @param projectPrinters filled with project identifiers and the ids of their printers
+   */
+  void loadPrinters(Map<Integer, Printer> printers, Map<String, Set<Integer>> projectPrinters)
+      throws SQLException {
+    Connection conn = login();
+    if (conn == null)
+      throw new SQLException("Could not reach SQL database.");
+    try (PreparedStatement statement = conn.prepareStatement("SELECT * FROM labelprinter")) {
+      ResultSet rs = statement.executeQuery();
       while (rs.next()) {
         String location = rs.getString("location");
         String name = rs.getString("name");
         String ip = rs.getString("url");
         PrinterType type = PrinterType.fromString(rs.getString("type"));
         boolean adminOnly = rs.getBoolean("admin_only");
-        if (adminOnly)
-          res.add(new Printer(location, name, ip, type, adminOnly));
+        printers.put(rs.getInt("id"), new Printer(location, name, ip, type, adminOnly));
+      }
+      String sql = "SELECT projects.openbis_project_identifier, "
+          + "printer_project_association.printer_id FROM projects "
+          + "JOIN printer_project_association "
+          + "ON projects.id = printer_project_association.project_id";
+      try (PreparedStatement assoc = conn.prepareStatement(sql)) {
+        rs = assoc.executeQuery();
+        while (rs.next()) {
+          String project = rs.getString(1);
+          if (!projectPrinters.containsKey(project))
+            projectPrinters.put(project, new HashSet<Integer>());
+          projectPrinters.get(project).add(rs.getInt(2));
+        }
       }
-    } catch (Exception e) {
-      e.printStackTrace();
-      logout(conn);
-      res.add(new Printer("QBiC LAB", "TSC_TTP-343C", "printserv.qbic.uni-tuebingen.de",
-          PrinterType.Label_Printer, true));
     } finally {
-      endQuery(conn, statement);
+      logout(conn);
     }
-    return res;
   }
 
+  /**
+   * Returns the active people from the shared {@link PeopleDirectory}, which only loads them again
+   * if the person table changed
+   * 
+   * @return names of active people mapped to their ids
+   */
   public Map<String, Integer> fetchPeople() {
     Map<String, Integer> map = new HashMap<String, Integer>();
     try {
-      map = getPrincipalInvestigatorsWithIDs();
-    } catch (NullPointerException e) {
+      map = PeopleDirectory.Instance.getPeople(this);
+    } catch (SQLException e) {
+      logger.error("Could not load people: " + e.getMessage());
       map.put("No Connection", -1);
     }
     return map;
   }
 
-  public void tryAddPersonToProjectByName(int projectID, String person, String role) {
-    String sql = "SELECT id FROM persons WHERE first_name = ? AND family_name = ?";
-    int personID = -1;
-    if (person == null || person.isEmpty())
-      return;
-    String[] splt = person.split(" ");
-    if (splt.length != 2)
-      return;
-    String first = splt[0];
-    String last = splt[1];
-    Connection conn = login();
-    try (PreparedStatement statement = conn.prepareStatement(sql)) {
-      statement.setString(1, first);
-      statement.setString(2, last);
-      ResultSet rs = statement.executeQuery();
-      while (rs.next()) {
-        personID = rs.getInt("id");
-      }
-      statement.close();
-    } catch (SQLException e) {
-      e.printStackTrace();
-    }
-    logout(conn);
-    if (personID > -1) {
-      addPersonToProject(projectID, personID, role);
-    }
-  }
-
   //
   // public String getInvestigatorForProject(String projectCode) {
   // String id_query = "SELECT pi_id FROM projects WHERE project_code = " + projectCode;
@@ -43,11 +43,18 @@ public enum LiferayConfigurationManager implements ConfigurationManager {
   public static final String ATTACHMENT_PASS = "attachment.password";
   public static final String ATTACHMENT_MAX_SIZE = "max.attachment.size";
 
+  public static final String MAX_TIER_SAMPLES = "max.tier.samples";
+  public static final String MAX_DESIGN_SAMPLES = "max.design.samples";
+
   public static final String MSQL_HOST = "mysql.host";
   public static final String MSQL_DB = "mysql.db";
   public static final String MSQL_USER = "mysql.user";
   public static final String MSQL_PORT = "mysql.port";
   public static final String MSQL_PASS = "mysql.pass";
+  public static final String MSQL_POOL_MIN_IDLE = "mysql.pool.min.idle";
+  public static final String MSQL_POOL_MAX = "mysql.pool.max";
+  public static final String MSQL_LEAK_DETECTION = "mysql.pool.leak.millis";
+  public static final String MSQL_STATEMENT_CACHE = "mysql.statement.cache";
   
   public static final String METADATA_OVERWRITE_GROUP = "metadata.write.group";
   public static final String DELETION_GROUP = "UNUSEDDELETION";
@@ -69,11 +76,18 @@ public enum LiferayConfigurationManager implements ConfigurationManager {
   private String attachmentPass;
   private String attachmentMaxSize;
 
+  private String maxTierSamples;
+  private String maxDesignSamples;
+
   private String msqlHost;
   private String msqlDB;
   private String msqlUser;
   private String msqlPort;
   private String msqlPass;
+  private String msqlPoolMinIdle;
+  private String msqlPoolMax;
+  private String msqlLeakDetection;
+  private String msqlStatementCache;
   
   private String metadataOverwrite;
   private String deletionGroup;
@@ -105,11 +119,18 @@ public enum LiferayConfigurationManager implements ConfigurationManager {
     attachmentPass = portletConfig.getProperty(ATTACHMENT_PASS);
     attachmentMaxSize = portletConfig.getProperty(ATTACHMENT_MAX_SIZE);
 
+    maxTierSamples = portletConfig.getProperty(MAX_TIER_SAMPLES);
+    maxDesignSamples = portletConfig.getProperty(MAX_DESIGN_SAMPLES);
+
     msqlHost = portletConfig.getProperty(MSQL_HOST);
     msqlDB = portletConfig.getProperty(MSQL_DB);
     msqlUser = portletConfig.getProperty(MSQL_USER);
     msqlPort = portletConfig.getProperty(MSQL_PORT);
     msqlPass = portletConfig.getProperty(MSQL_PASS);
+    msqlPoolMinIdle = portletConfig.getProperty(MSQL_POOL_MIN_IDLE);
+    msqlPoolMax = portletConfig.getProperty(MSQL_POOL_MAX);
+    msqlLeakDetection = portletConfig.getProperty(MSQL_LEAK_DETECTION);
+    msqlStatementCache = portletConfig.getProperty(MSQL_STATEMENT_CACHE);
     
     metadataOverwrite = portletConfig.getProperty(METADATA_OVERWRITE_GROUP);
     deletionGroup = portletConfig.getProperty(DELETION_GROUP);
@@ -174,6 +195,16 @@ public enum LiferayConfigurationManager implements ConfigurationManager {
     return attachmentMaxSize;
   }
 
+  @Override
+  public String getMaxTierSamples() {
+    return maxTierSamples;
+  }
+
+  @Override
+  public String getMaxDesignSamples() {
+    return maxDesignSamples;
+  }
+
   @Override
   public String getMysqlHost() {
     return msqlHost;
@@ -199,6 +230,26 @@ public enum LiferayConfigurationManager implements ConfigurationManager {
     return msqlPass;
   }
 
+  @Override
+  public String getMysqlPoolMinIdle() {
+    return msqlPoolMinIdle;
+  }
+
+  @Override
+  public String getMysqlPoolMax() {
+    return msqlPoolMax;
+  }
+
+  @Override
+  public String getMysqlLeakDetectionMillis() {
+    return msqlLeakDetection;
+  }
+
+  @Override
+  public String getMysqlStatementCacheSize() {
+    return msqlStatementCache;
+  }
+
   @Override
   public String getMetadataWriteGrp() {
     return metadataOverwrite;
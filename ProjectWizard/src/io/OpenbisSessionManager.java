@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.systemsx.cisd.common.exceptions.InvalidSessionException;
+import life.qbic.openbis.openbisclient.IOpenBisClient;
+import life.qbic.openbis.openbisclient.OpenBisClient;
+import logging.Log4j2Logger;
+
+/**
+ * Shares logged in openBIS API sessions between all UIs. Every UI uses the same datasource
+ * credentials, so instead of logging in once per browser tab, UIs get a handle to a small pool of
+ * sessions. Each call on a handle uses the least busy session of the pool; another session is only
+ * opened when all existing ones are in use, up to a maximum. Sessions log in on first use, are
+ * checked for liveness before use and logged in again if they expired. Logging in only locks the
+ * session concerned, so a slow login does not block UIs using other sessions. Calls to login and
+ * logout on the handles do not touch the shared sessions.
+ *
+ * @author agent
+ *
+ */
+public enum OpenbisSessionManager {
+  Instance;
+
+  public static final int DEFAULT_MAX_SESSIONS = 4;
+  public static final long DEFAULT_LIVENESS_CHECK_MILLIS = 60 * 1000;
+
+  logging.Logger logger = new Log4j2Logger(OpenbisSessionManager.class);
+
+  private final Map<String, SessionPool> pools = new HashMap<String, SessionPool>();
+  private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+  private volatile long livenessCheckInterval = DEFAULT_LIVENESS_CHECK_MILLIS;
+
+  /**
+   * One openBIS client shared by several UIs
+   */
+  private class PooledSession {
+    final IOpenBisClient client;
+    // calls currently using this session, guarded by the pool
+    int inUse = 0;
+    private boolean loggedIn = false;
+    private long lastCheck;
+
+    PooledSession(IOpenBisClient client) {
+      this.client = client;
+    }
+
+    synchronized void ensureLoggedIn() {
+      long now = System.currentTimeMillis();
+      if (!loggedIn) {
+        client.login();
+        loggedIn = true;
+        lastCheck = now;
+      } else if (now - lastCheck > livenessCheckInterval) {
+        if (!client.loggedin()) {
+          logger.info("openBIS session expired, logging in again.");
+          client.login();
+        }
+        lastCheck = now;
+      }
+    }
+
+    synchronized void login() {
+      client.login();
+      loggedIn = true;
+      lastCheck = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Sessions of one set of credentials
+   */
+  private class SessionPool {
+    final String user;
+    final String password;
+    final String url;
+    private final List<PooledSession> sessions = new ArrayList<PooledSession>();
+
+    SessionPool(String user, String password, String url) {
+      this.user = user;
+      this.password = password;
+      this.url = url;
+    }
+
+    /**
+     * Returns the least busy session, or a new one if all sessions are in use and there are fewer
+     * than the maximum. Sessions are not logged in here, so this never waits for openBIS.
+     */
+    synchronized PooledSession acquire() {
+      PooledSession res = null;
+      for (PooledSession session : sessions)
+        if (res == null || session.inUse < res.inUse)
+          res = session;
+      if ((res == null || res.inUse > 0) && sessions.size() < maxSessions) {
+        logger.info("Opening openBIS session " + (sessions.size() + 1) + " of " + maxSessions);
+        res = new PooledSession(new OpenBisClient(user, password, url));
+        sessions.add(res);
+      }
+      res.inUse++;
+      return res;
+    }
+
+    synchronized void release(PooledSession session) {
+      session.inUse--;
+    }
+  }
+
+  /**
+   * Sets the maximum number of openBIS sessions opened per set of credentials
+   *
+   * @param max maximum number of sessions
+   */
+  public void setMaxSessions(int max) {
+    this.maxSessions = Math.max(1, max);
+  }
+
+  /**
+   * Sets how long a session is trusted to be alive before it is checked again
+   *
+   * @param millis interval in milliseconds
+   */
+  public void setLivenessCheckInterval(long millis) {
+    this.livenessCheckInterval = millis;
+  }
+
+  /**
+   * Returns a client using the shared sessions for these credentials. One session is logged in
+   * before returning, so unreachable openBIS instances are noticed right away.
+   *
+   * @param user openBIS user name
+   * @param password password of the user
+   * @param url openBIS application server URL
+   * @return a client that can be used like a logged in {@link OpenBisClient}
+   */
+  public IOpenBisClient getClient(String user, String password, String url) {
+    SessionPool pool = getPool(user, password, url);
+    PooledSession session = pool.acquire();
+    try {
+      session.ensureLoggedIn();
+    } finally {
+      pool.release(session);
+    }
+    return (IOpenBisClient) Proxy.newProxyInstance(IOpenBisClient.class.getClassLoader(),
+        new Class<?>[] {IOpenBisClient.class}, new SessionHandler(pool));
+  }
+
+  private synchronized SessionPool getPool(String user, String password, String url) {
+    String key = user + "@" + url;
+    SessionPool pool = pools.get(key);
+    if (pool == null) {
+      pool = new SessionPool(user, password, url);
+      pools.put(key, pool);
+    }
+    return pool;
+  }
+
+  /**
+   * Forwards calls to a pooled session, logging in again and retrying once if openBIS reports an
+   * invalid session
+   */
+  private class SessionHandler implements InvocationHandler {
+    private final SessionPool pool;
+
+    SessionHandler(SessionPool pool) {
+      this.pool = pool;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (method.getDeclaringClass().equals(Object.class)) {
+        if (name.equals("equals"))
+          return proxy == args[0];
+        if (name.equals("hashCode"))
+          return System.identityHashCode(proxy);
+        return "Shared openBIS sessions of " + pool.user + "@" + pool.url;
+      }
+      // the shared sessions are managed here, UIs must not log them out themselves
+      if (name.equals("logout"))
+        return null;
+      PooledSession session = pool.acquire();
+      try {
+        session.ensureLoggedIn();
+        if (name.equals("login"))
+          return null;
+        try {
+          return method.invoke(session.client, args);
+        } catch (InvocationTargetException e) {
+          if (!isInvalidSession(e.getCause()))
+            throw e.getCause();
+          logger.warn("openBIS session was invalid during " + name + ". Logging in again.");
+          session.login();
+          try {
+            return method.invoke(session.client, args);
+          } catch (InvocationTargetException e2) {
+            throw e2.getCause();
+          }
+        }
+      } finally {
+        pool.release(session);
+      }
+    }
+
+    private boolean isInvalidSession(Throwable t) {
+      while (t != null) {
+        if (t instanceof InvalidSessionException)
+          return true;
+        t = t.getCause();
+      }
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import logging.Log4j2Logger;
+
+/**
+ * Keeps the active people of the person database in memory for all UIs. People are needed every
+ * time a wizard is started, but the table rarely changes. Before the directory is used, a cheap
+ * fingerprint of the table (number of active people and their ids) is compared to the one of the
+ * loaded people and the people are only loaded again if it differs. Changed names don't change the
+ * fingerprint, so the people are also reloaded after a while.
+ *
+ * @author agent
+ *
+ */
+public enum PeopleDirectory {
+  Instance;
+
+  public static final long DEFAULT_MAX_AGE_MILLIS = 15 * 60 * 1000;
+
+  logging.Logger logger = new Log4j2Logger(PeopleDirectory.class);
+
+  private long maxAge = DEFAULT_MAX_AGE_MILLIS;
+  private Map<String, Integer> people = null;
+  private String fingerprint = null;
+  private long loaded = 0;
+
+  /**
+   * Sets the time after which people are loaded again even if the fingerprint did not change
+   *
+   * @param millis maximum age of the loaded people in milliseconds
+   */
+  public synchronized void setMaxAge(long millis) {
+    this.maxAge = millis;
+  }
+
+  /**
+   * Returns the active people, loading them if the person table changed
+   *
+   * @param dbm database manager used to check for changes and to load people
+   * @return copy of the map of names of active people to their ids
+   * @throws SQLException if people were never loaded and the database can't be reached
+   */
+  public synchronized Map<String, Integer> getPeople(DBManager dbm) throws SQLException {
+    String current;
+    try {
+      current = dbm.getPeopleFingerprint();
+    } catch (SQLException e) {
+      if (people == null)
+        throw e;
+      logger.warn("Could not check for changed people, using known people: " + e.getMessage());
+      return new HashMap<String, Integer>(people);
+    }
+    boolean expired = System.currentTimeMillis() - loaded > maxAge;
+    if (people == null || expired || !current.equals(fingerprint)) {
+      Map<String, Integer> fresh = dbm.loadActivePeople();
+      logger.info("Loaded " + fresh.size() + " people (" + current + ").");
+      people = fresh;
+      fingerprint = current;
+      loaded = System.currentTimeMillis();
+    }
+    return new HashMap<String, Integer>(people);
+  }
+
+  /**
+   * Loads people again with the next request, e.g. after a person was added
+   */
+  public synchronized void invalidate() {
+    fingerprint = null;
+  }
+
+}
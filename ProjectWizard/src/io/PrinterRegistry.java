@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import logging.Log4j2Logger;
+import model.Printer;
+import model.Printer.PrinterType;
+
+/**
+ * Keeps the label printers and the projects they are assigned to in memory for all UIs. Both
+ * tables are small and rarely change, so they are loaded once and refreshed after a while instead
+ * of being queried on every project selection. If a refresh fails, the last known printers are
+ * used.
+ *
+ * @author agent
+ *
+ */
+public enum PrinterRegistry {
+  Instance;
+
+  public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+  // used if the printers could never be loaded
+  private static final Printer FALLBACK_PRINTER = new Printer("QBiC LAB", "TSC_TTP-343C",
+      "printserv.qbic.uni-tuebingen.de", PrinterType.Label_Printer, true);
+
+  logging.Logger logger = new Log4j2Logger(PrinterRegistry.class);
+
+  private long timeToLive = DEFAULT_TTL_MILLIS;
+  private Map<Integer, Printer> printers = Collections.emptyMap();
+  // project codes mapped to the ids of their printers
+  private Map<String, Set<Integer>> projectPrinters = Collections.emptyMap();
+  private long loaded = 0;
+
+  /**
+   * Sets the time after which the printers are loaded again
+   *
+   * @param millis time to live in milliseconds
+   */
+  public synchronized void setTimeToLive(long millis) {
+    this.timeToLive = millis;
+  }
+
+  /**
+   * Returns the printers that can be used for a project: the printers assigned to it and the
+   * printers only available to admins
+   *
+   * @param dbm database manager used if the printers have to be (re)loaded
+   * @param project project identifier (/SPACE/PROJECT) or code
+   * @return printers of the project
+   */
+  public synchronized Set<Printer> getPrintersForProject(DBManager dbm, String project) {
+    if (System.currentTimeMillis() - loaded > timeToLive)
+      reload(dbm);
+    Set<Printer> res = new LinkedHashSet<Printer>();
+    if (printers.isEmpty()) {
+      res.add(FALLBACK_PRINTER);
+      return res;
+    }
+    Set<Integer> assigned = projectPrinters.get(toKey(project));
+    if (assigned != null) {
+      for (int id : assigned) {
+        Printer p = printers.get(id);
+        if (p != null && !p.isAdminPrinter())
+          res.add(p);
+      }
+    }
+    for (Printer p : printers.values())
+      if (p.isAdminPrinter())
+        res.add(p);
+    return res;
+  }
+
+  /**
+   * Loads the printers again with the next request, e.g. after printers were assigned to a project
+   */
+  public synchronized void invalidate() {
+    loaded = 0;
+  }
+
+  private void reload(DBManager dbm) {
+    Map<Integer, Printer> newPrinters = new HashMap<Integer, Printer>();
+    Map<String, Set<Integer>> newProjects = new HashMap<String, Set<Integer>>();
+    try {
+      dbm.loadPrinters(newPrinters, newProjects);
+    } catch (SQLException | NullPointerException e) {
+      logger.error("Could not load printers, using the last known printers: " + e.getMessage());
+      // don't try again on every request while the database is down
+      loaded = System.currentTimeMillis() - timeToLive / 2;
+      return;
+    }
+    Map<String, Set<Integer>> byCode = new HashMap<String, Set<Integer>>();
+    for (Map.Entry<String, Set<Integer>> e : newProjects.entrySet()) {
+      String key = toKey(e.getKey());
+      if (!byCode.containsKey(key))
+        byCode.put(key, new HashSet<Integer>());
+      byCode.get(key).addAll(e.getValue());
+    }
+    printers = newPrinters;
+    projectPrinters = byCode;
+    loaded = System.currentTimeMillis();
+    logger.info("Loaded " + printers.size() + " printers assigned to " + projectPrinters.size()
+        + " projects.");
+  }
+
+  /**
+   * Project codes are unique, so identifiers and codes of the same project share one entry
+   */
+  private String toKey(String project) {
+    return project.substring(project.lastIndexOf("/") + 1).toUpperCase();
+  }
+
+}
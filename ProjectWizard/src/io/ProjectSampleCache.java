@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
+import life.qbic.openbis.openbisclient.IOpenBisClient;
+import logging.Log4j2Logger;
+
+/**
+ * Keeps snapshots of the samples (with parents and children) of openBIS projects. Fetching the
+ * sample graph of a big project takes seconds and is needed by several views, so a snapshot is
+ * kept per project. Only the most recently used projects are kept and snapshots expire after a
+ * while. Registrations into a project have to call {@link #invalidate(String)} so the next request
+ * sees the new samples.
+ *
+ * @author agent
+ *
+ */
+public enum ProjectSampleCache {
+  Instance;
+
+  public static final int DEFAULT_MAX_PROJECTS = 20;
+  public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+  logging.Logger logger = new Log4j2Logger(ProjectSampleCache.class);
+
+  private int maxProjects = DEFAULT_MAX_PROJECTS;
+  private long timeToLive = DEFAULT_TTL_MILLIS;
+  private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+  // access ordered, so the least recently used project is evicted first
+  private final LinkedHashMap<String, Snapshot> snapshots =
+      new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+          return size() > maxProjects;
+        }
+      };
+
+  // snapshots currently fetched from openBIS, so invalidation can reach them as well
+  private final Map<String, Snapshot> loading = new HashMap<String, Snapshot>();
+
+  private static class Snapshot {
+    List<Sample> samples;
+    final long created;
+    // set when the project changed while the snapshot was being fetched
+    boolean stale = false;
+
+    Snapshot() {
+      this.created = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Sets the number of projects whose samples are kept
+   *
+   * @param max maximum number of cached projects
+   */
+  public synchronized void setMaxProjects(int max) {
+    this.maxProjects = Math.max(1, max);
+  }
+
+  /**
+   * Sets the time after which a snapshot is fetched again
+   *
+   * @param millis time to live in milliseconds
+   */
+  public synchronized void setTimeToLive(long millis) {
+    this.timeToLive = millis;
+  }
+
+  /**
+   * Returns the samples of a project including parent and child information, fetching them from
+   * openBIS if there is no valid snapshot
+   *
+   * @param openbis client used if the samples have to be fetched
+   * @param project project identifier (/SPACE/PROJECT) or code
+   * @return copy of the list of samples of the project
+   */
+  public List<Sample> getSamplesWithParentsAndChildren(IOpenBisClient openbis, String project) {
+    String key = toKey(project);
+    Snapshot snapshot = getValid(key);
+    if (snapshot == null) {
+      // only one thread fetches a project, the others wait and use its result
+      Object lock = locks.putIfAbsent(key, new Object());
+      if (lock == null)
+        lock = locks.get(key);
+      synchronized (lock) {
+        snapshot = getValid(key);
+        if (snapshot == null) {
+          Snapshot fresh = new Snapshot();
+          synchronized (this) {
+            loading.put(key, fresh);
+          }
+          List<Sample> samples = null;
+          try {
+            samples = openbis.getSamplesWithParentsAndChildrenOfProjectBySearchService(project);
+          } finally {
+            synchronized (this) {
+              loading.remove(key);
+              fresh.samples = samples;
+              // samples registered during the fetch might be missing, so such a snapshot is not
+              // kept
+              if (samples != null && !fresh.stale)
+                snapshots.put(key, fresh);
+            }
+          }
+          // a missing result is not kept, but callers get an empty list like for empty projects
+          if (samples == null) {
+            logger.warn("openBIS returned no sample list for " + key);
+            samples = new ArrayList<Sample>();
+          }
+          logger.debug("Fetched " + samples.size() + " samples of " + key + " in "
+              + (System.currentTimeMillis() - fresh.created) + " ms");
+          return new ArrayList<Sample>(samples);
+        }
+      }
+    }
+    return new ArrayList<Sample>(snapshot.samples);
+  }
+
+  /**
+   * Drops the snapshot of a project. Has to be called after samples of that project were
+   * registered or changed.
+   *
+   * @param project project identifier (/SPACE/PROJECT) or code
+   */
+  public synchronized void invalidate(String project) {
+    String key = toKey(project);
+    Snapshot running = loading.get(key);
+    if (running != null)
+      running.stale = true;
+    if (snapshots.remove(key) != null)
+      logger.debug("Sample snapshot of " + key + " invalidated.");
+  }
+
+  /**
+   * Drops all snapshots
+   */
+  public synchronized void invalidateAll() {
+    for (Snapshot s : loading.values())
+      s.stale = true;
+    snapshots.clear();
+  }
+
+  private synchronized Snapshot getValid(String key) {
+    Snapshot s = snapshots.get(key);
+    if (s == null)
+      return null;
+    if (System.currentTimeMillis() - s.created > timeToLive) {
+      snapshots.remove(key);
+      return null;
+    }
+    return s;
+  }
+
+  /**
+   * Project codes are unique, so identifiers and codes of the same project share one entry
+   */
+  private String toKey(String project) {
+    return project.substring(project.lastIndexOf("/") + 1).toUpperCase();
+  }
+
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import life.qbic.openbis.openbisclient.IOpenBisClient;
+import logging.Log4j2Logger;
+
+/**
+ * Loads everything a new UI needs from openBIS and the person database. The lookups are
+ * independent, so they are run concurrently on a small shared pool. Lookups that are not done
+ * before the timeout are replaced by a fallback value and the wizard starts anyway. Failed lookups
+ * are reported, so the user can be told and load again. The admin status of a user is not
+ * downgraded because of a failed lookup, the last known status is used instead.
+ * <p>
+ * The openBIS client is a handle to a session shared by all UIs (see
+ * {@link OpenbisSessionManager}), so it is used from several threads anyway. The lookups only read
+ * from openBIS and logging in again is synchronized per session.
+ *
+ * @author agent
+ *
+ */
+public class StartupDataLoader {
+
+  public static final long DEFAULT_TIMEOUT_MILLIS = 15000;
+  private static final int POOL_SIZE = 8;
+  private static final int QUEUE_SIZE = 200;
+
+  private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60,
+      TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "startup-loader-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+  static {
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+  // admin status of users found by earlier lookups
+  private static final Map<String, Boolean> knownAdmins = new ConcurrentHashMap<String, Boolean>();
+
+  private final IOpenBisClient openbis;
+  private final DBManager dbm;
+  private final List<String> experimentTypes;
+  private long timeout = DEFAULT_TIMEOUT_MILLIS;
+  private boolean isAdmin = false;
+  private final List<String> failed = new ArrayList<String>();
+
+  logging.Logger logger = new Log4j2Logger(StartupDataLoader.class);
+
+  public StartupDataLoader(IOpenBisClient openbis, DBManager dbm, List<String> experimentTypes) {
+    this.openbis = openbis;
+    this.dbm = dbm;
+    this.experimentTypes = experimentTypes;
+  }
+
+  /**
+   * Sets the time the lookups may take before fallbacks are used
+   *
+   * @param millis timeout in milliseconds
+   */
+  public void setTimeout(long millis) {
+    this.timeout = millis;
+  }
+
+  /**
+   * Fetches vocabularies, spaces and people concurrently and collects them
+   *
+   * @param user the user whose spaces and rights are fetched
+   * @return the vocabularies needed by the wizard views
+   */
+  public DBVocabularies load(final String user) {
+    long start = System.currentTimeMillis();
+    failed.clear();
+    Future<Map<String, String>> taxMap = labeled("Q_NCBI_TAXONOMY");
+    Future<Map<String, String>> tissueMap = labeled("Q_PRIMARY_TISSUES");
+    Future<Map<String, String>> deviceMap = labeled("Q_MS_DEVICES");
+    Future<Map<String, String>> cellLinesMap = labeled("Q_CELL_LINES");
+    Future<Map<String, String>> enzymeMap = labeled("Q_DIGESTION_PROTEASES");
+    Future<Map<String, String>> chromTypes = labeled("Q_CHROMATOGRAPHY_TYPES");
+    Future<List<String>> sampleTypes = codes("Q_SAMPLE_TYPES");
+    Future<Map<String, String>> purificationMethods = labeled("Q_PROTEIN_PURIFICATION_METHODS");
+    Future<List<String>> fractionationTypes = codes("Q_MS_FRACTIONATION_PROTOCOLS");
+    Future<List<String>> enrichmentTypes = codes("Q_MS_ENRICHMENT_PROTOCOLS");
+    Future<Map<String, String>> antibodiesWithLabels = labeled("Q_ANTIBODY");
+    Future<List<String>> msProtocols = codes("Q_MS_PROTOCOLS");
+    Future<List<String>> lcmsMethods = codes("Q_MS_LCMS_METHODS");
+    Future<List<String>> spaces = pool.submit(new Callable<List<String>>() {
+      @Override
+      public List<String> call() {
+        return openbis.getUserSpaces(user);
+      }
+    });
+    Future<Boolean> admin = pool.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return openbis.isUserAdmin(user);
+      }
+    });
+    Future<Map<String, Integer>> people = pool.submit(new Callable<Map<String, Integer>>() {
+      @Override
+      public Map<String, Integer> call() {
+        return dbm.fetchPeople();
+      }
+    });
+
+    // all calls share one deadline, so the total wait is bounded by the timeout
+    long deadline = System.currentTimeMillis() + timeout;
+    Map<String, Integer> noPeople = new HashMap<String, Integer>();
+    noPeople.put("No Connection", -1);
+    DBVocabularies res = new DBVocabularies(get(taxMap, "taxonomy", deadline, emptyMap()),
+        get(tissueMap, "tissues", deadline, emptyMap()),
+        get(cellLinesMap, "cell lines", deadline, emptyMap()),
+        get(sampleTypes, "sample types", deadline, emptyList()),
+        get(spaces, "user spaces", deadline, emptyList()),
+        get(people, "people", deadline, noPeople), experimentTypes,
+        get(enzymeMap, "enzymes", deadline, emptyMap()),
+        get(antibodiesWithLabels, "antibodies", deadline, emptyMap()),
+        get(deviceMap, "ms devices", deadline, emptyMap()),
+        get(msProtocols, "ms protocols", deadline, emptyList()),
+        get(lcmsMethods, "lcms methods", deadline, emptyList()),
+        get(chromTypes, "chromatography types", deadline, emptyMap()),
+        get(fractionationTypes, "fractionation types", deadline, emptyList()),
+        get(enrichmentTypes, "enrichment types", deadline, emptyList()),
+        get(purificationMethods, "purification methods", deadline, emptyMap()));
+    Boolean known = knownAdmins.get(user);
+    Boolean adminStatus = get(admin, "admin status", deadline, null);
+    if (adminStatus != null)
+      knownAdmins.put(user, adminStatus);
+    else if (known != null)
+      logger.warn("Using last known admin status of " + user + ": " + known);
+    isAdmin = adminStatus != null ? adminStatus : known != null && known;
+    logger.info("Startup information loaded in " + (System.currentTimeMillis() - start) + " ms");
+    return res;
+  }
+
+  /**
+   * Returns if the user of the last {@link #load(String)} call is an openBIS admin. If this could
+   * not be found out in time, the last known status of the user is used, false if there is none.
+   */
+  public boolean isUserAdmin() {
+    return isAdmin;
+  }
+
+  /**
+   * @return names of the lookups of the last {@link #load(String)} call that failed or took too
+   *         long and were replaced by fallback values, empty if everything was loaded
+   */
+  public List<String> getFailedLookups() {
+    return new ArrayList<String>(failed);
+  }
+
+  private Future<Map<String, String>> labeled(final String vocabulary) {
+    return pool.submit(new Callable<Map<String, String>>() {
+      @Override
+      public Map<String, String> call() {
+        return VocabularyCache.Instance.getCodesAndLabels(openbis, vocabulary);
+      }
+    });
+  }
+
+  private Future<List<String>> codes(final String vocabulary) {
+    return pool.submit(new Callable<List<String>>() {
+      @Override
+      public List<String> call() {
+        return VocabularyCache.Instance.getCodes(openbis, vocabulary);
+      }
+    });
+  }
+
+  private <T> T get(Future<T> future, String name, long deadline, T fallback) {
+    long left = Math.max(0, deadline - System.currentTimeMillis());
+    try {
+      return future.get(left, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      logger.warn("Fetching " + name + " took longer than " + timeout + " ms. Using fallback.");
+    } catch (ExecutionException e) {
+      logger.error("Fetching " + name + " failed. Using fallback.", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.warn("Interrupted while fetching " + name + ". Using fallback.");
+    }
+    failed.add(name);
+    return fallback;
+  }
+
+  private Map<String, String> emptyMap() {
+    return new HashMap<String, String>();
+  }
+
+  private List<String> emptyList() {
+    return new ArrayList<String>();
+  }
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import life.qbic.openbis.openbisclient.IOpenBisClient;
+import logging.Log4j2Logger;
+
+/**
+ * Keeps the openBIS vocabularies used by the wizard for all UIs. Vocabularies rarely change, so
+ * UIs read them from here instead of asking openBIS on each page load. Each vocabulary is cached
+ * on its own, so different vocabularies can be loaded in parallel. Entries older than the time to
+ * live are still served, but trigger a refresh in the background. Invalidating the cache also
+ * discards the results of loads that were running at the time. Returned maps and lists are copies,
+ * so views can not change the shared state.
+ *
+ * @author agent
+ *
+ */
+public enum VocabularyCache {
+  Instance;
+
+  public static final long DEFAULT_TTL_MILLIS = 30 * 60 * 1000;
+
+  logging.Logger logger = new Log4j2Logger(VocabularyCache.class);
+
+  private final ConcurrentMap<String, Entry<Map<String, String>>> labeled =
+      new ConcurrentHashMap<String, Entry<Map<String, String>>>();
+  private final ConcurrentMap<String, Entry<List<String>>> codes =
+      new ConcurrentHashMap<String, Entry<List<String>>>();
+  private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+  private final Set<String> refreshing =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private volatile long timeToLive = DEFAULT_TTL_MILLIS;
+  // incremented by invalidate, entries loaded before are treated as missing
+  private final AtomicLong generation = new AtomicLong();
+  private final ExecutorService refresher =
+      Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "vocabulary-cache-refresh");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  private static class Entry<T> {
+    final T value;
+    final long created;
+    // generation of the cache when loading started
+    final long generation;
+
+    Entry(T value, long generation) {
+      this.value = value;
+      this.created = System.currentTimeMillis();
+      this.generation = generation;
+    }
+  }
+
+  /**
+   * Sets the time after which cached vocabularies are refreshed in the background
+   *
+   * @param millis time to live in milliseconds
+   */
+  public void setTimeToLive(long millis) {
+    this.timeToLive = millis;
+  }
+
+  /**
+   * Returns codes and labels of an openBIS vocabulary, fetching it if it is not cached yet
+   *
+   * @param openbis client used if the vocabulary has to be (re)loaded
+   * @param vocabulary code of the vocabulary
+   * @return copy of the map of codes and labels
+   */
+  public Map<String, String> getCodesAndLabels(final IOpenBisClient openbis,
+      final String vocabulary) {
+    Map<String, String> res = get(labeled, "labels:" + vocabulary, vocabulary,
+        new Callable<Map<String, String>>() {
+          @Override
+          public Map<String, String> call() {
+            return openbis.getVocabCodesAndLabelsForVocab(vocabulary);
+          }
+        });
+    return new HashMap<String, String>(res);
+  }
+
+  /**
+   * Returns the codes of an openBIS vocabulary, fetching it if it is not cached yet
+   *
+   * @param openbis client used if the vocabulary has to be (re)loaded
+   * @param vocabulary code of the vocabulary
+   * @return copy of the list of codes
+   */
+  public List<String> getCodes(final IOpenBisClient openbis, final String vocabulary) {
+    List<String> res =
+        get(codes, "codes:" + vocabulary, vocabulary, new Callable<List<String>>() {
+          @Override
+          public List<String> call() {
+            return openbis.getVocabCodesForVocab(vocabulary);
+          }
+        });
+    return new ArrayList<String>(res);
+  }
+
+  /**
+   * Drops all cached vocabularies. The next request reloads them from openBIS. Loads that are
+   * running right now may still store their result, but it is not used.
+   */
+  public void invalidate() {
+    logger.info("Vocabulary cache invalidated.");
+    generation.incrementAndGet();
+    labeled.clear();
+    codes.clear();
+  }
+
+  private <T> T get(final ConcurrentMap<String, Entry<T>> cache, final String key,
+      final String vocabulary, final Callable<T> loader) {
+    Entry<T> entry = current(cache.get(vocabulary));
+    if (entry == null) {
+      // only one thread loads a missing vocabulary, the others wait for its result
+      Object lock = locks.putIfAbsent(key, new Object());
+      if (lock == null)
+        lock = locks.get(key);
+      synchronized (lock) {
+        entry = current(cache.get(vocabulary));
+        if (entry == null) {
+          long gen = generation.get();
+          entry = new Entry<T>(load(loader), gen);
+          cache.put(vocabulary, entry);
+        }
+      }
+    } else if (System.currentTimeMillis() - entry.created > timeToLive && refreshing.add(key)) {
+      refresher.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            long gen = generation.get();
+            cache.put(vocabulary, new Entry<T>(load(loader), gen));
+            logger.info("Refreshed vocabulary " + vocabulary);
+          } catch (Exception e) {
+            logger.error("Could not refresh vocabulary " + vocabulary + ", keeping old one.", e);
+          } finally {
+            refreshing.remove(key);
+          }
+        }
+      });
+    }
+    return entry.value;
+  }
+
+  /**
+   * @return the entry, or null if there is none or it was loaded before the last invalidation
+   */
+  private <T> Entry<T> current(Entry<T> entry) {
+    if (entry == null || entry.generation != generation.get())
+      return null;
+    return entry;
+  }
+
+  private <T> T load(Callable<T> loader) {
+    try {
+      return loader.call();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
@@ -15,13 +15,15 @@
  *******************************************************************************/
 package main;
 
+import io.AsyncDBManager;
 import io.ConfigurationManager;
 import io.ConfigurationManagerFactory;
 import io.DBConfig;
 import io.DBManager;
 import io.DBVocabularies;
+import io.OpenbisSessionManager;
+import io.StartupDataLoader;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
-import life.qbic.openbis.openbisclient.OpenBisClient;
 import life.qbic.openbis.openbisclient.OpenBisClientMock;
 import life.qbic.portal.liferayandvaadinhelpers.main.LiferayAndVaadinUtils;
 
@@ -51,6 +53,8 @@ import org.vaadin.teemu.wizards.event.WizardProgressListener;
 import org.vaadin.teemu.wizards.event.WizardStepActivationEvent;
 import org.vaadin.teemu.wizards.event.WizardStepSetChangedEvent;
 
+import uicomponents.Styles;
+import uicomponents.Styles.NotificationType;
 import views.AdminView;
 import views.MetadataUploadView;
 
@@ -61,6 +65,8 @@ import com.vaadin.annotations.VaadinServletConfiguration;
 import com.vaadin.server.FontAwesome;
 import com.vaadin.server.VaadinRequest;
 import com.vaadin.server.VaadinServlet;
+import com.vaadin.ui.Button;
+import com.vaadin.ui.Button.ClickEvent;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.TabSheet;
 import com.vaadin.ui.UI;
@@ -68,6 +74,7 @@ import com.vaadin.ui.VerticalLayout;
 import com.vaadin.ui.themes.ValoTheme;
 
 import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Experiment;
+import control.DesignSizeEstimator;
 import control.ExperimentImportController;
 import control.WizardController;
 
@@ -99,6 +106,8 @@ public class ProjectwizardUI extends UI {
 
   private final TabSheet tabs = new TabSheet();
   private boolean isAdmin = false;
+  private WizardController wizardController;
+  private ExperimentImportController importController;
 
   @Override
   protected void init(VaadinRequest request) {
@@ -133,9 +142,8 @@ public class ProjectwizardUI extends UI {
     if (!isDevelopment() || !testMode) {
       try {
         logger.debug("trying to connect to openbis");
-        this.openbis = new OpenBisClient(config.getDataSourceUser(), config.getDataSourcePassword(),
-            config.getDataSourceUrl());
-        this.openbis.login();
+        this.openbis = OpenbisSessionManager.Instance.getClient(config.getDataSourceUser(),
+            config.getDataSourcePassword(), config.getDataSourceUrl());
       } catch (Exception e) {
         success = false;
         logger.error(
@@ -152,38 +160,27 @@ public class ProjectwizardUI extends UI {
           "openBIS could not be reached. Resuming with mock version. Some options might be non-functional. Reload to retry."));
     }
     if (success) {
-      // stuff from openbis
-      Map<String, String> taxMap = openbis.getVocabCodesAndLabelsForVocab("Q_NCBI_TAXONOMY");
-      Map<String, String> tissueMap = openbis.getVocabCodesAndLabelsForVocab("Q_PRIMARY_TISSUES");
-      Map<String, String> deviceMap = openbis.getVocabCodesAndLabelsForVocab("Q_MS_DEVICES");
-      Map<String, String> cellLinesMap = openbis.getVocabCodesAndLabelsForVocab("Q_CELL_LINES");
-      Map<String, String> enzymeMap =
-          openbis.getVocabCodesAndLabelsForVocab("Q_DIGESTION_PROTEASES");
-      Map<String, String> chromTypes =
-          openbis.getVocabCodesAndLabelsForVocab("Q_CHROMATOGRAPHY_TYPES");
-      List<String> sampleTypes = openbis.getVocabCodesForVocab("Q_SAMPLE_TYPES");
-      Map<String, String> purificationMethods =
-          openbis.getVocabCodesAndLabelsForVocab("Q_PROTEIN_PURIFICATION_METHODS");
-      List<String> fractionationTypes =
-          openbis.getVocabCodesForVocab("Q_MS_FRACTIONATION_PROTOCOLS");
-      List<String> enrichmentTypes = openbis.getVocabCodesForVocab("Q_MS_ENRICHMENT_PROTOCOLS");
-      Map<String, String> antibodiesWithLabels =
-          openbis.getVocabCodesAndLabelsForVocab("Q_ANTIBODY");
-      List<String> msProtocols = openbis.getVocabCodesForVocab("Q_MS_PROTOCOLS");
-      List<String> lcmsMethods = openbis.getVocabCodesForVocab("Q_MS_LCMS_METHODS");
-      final List<String> spaces = openbis.getUserSpaces(userID);
-      isAdmin = openbis.isUserAdmin(userID);
-      // stuff from mysql database
+      // stuff from openbis and mysql database, fetched in parallel
       DBConfig mysqlConfig = new DBConfig(config.getMysqlHost(), config.getMysqlPort(),
           config.getMysqlDB(), config.getMysqlUser(), config.getMysqlPass());
+      mysqlConfig.setPoolSize(
+          (int) parseSetting("mysql.pool.min.idle", config.getMysqlPoolMinIdle(),
+              mysqlConfig.getMinIdleConnections()),
+          (int) parseSetting("mysql.pool.max", config.getMysqlPoolMax(),
+              mysqlConfig.getMaxConnections()));
+      mysqlConfig.setLeakDetectionMillis(parseSetting("mysql.pool.leak.millis",
+          config.getMysqlLeakDetectionMillis(), mysqlConfig.getLeakDetectionMillis()));
+      mysqlConfig.setStatementCacheSize((int) parseSetting("mysql.statement.cache",
+          config.getMysqlStatementCacheSize(), mysqlConfig.getStatementCacheSize()));
       DBManager dbm = new DBManager(mysqlConfig);
-      Map<String, Integer> peopleMap = dbm.fetchPeople();
-      DBVocabularies vocabs = new DBVocabularies(taxMap, tissueMap, cellLinesMap, sampleTypes,
-          spaces, peopleMap, expTypes, enzymeMap, antibodiesWithLabels, deviceMap, msProtocols,
-          lcmsMethods, chromTypes, fractionationTypes, enrichmentTypes, purificationMethods);
+      StartupDataLoader loader = new StartupDataLoader(openbis, dbm, expTypes);
+      DBVocabularies vocabs = loader.load(userID);
+      isAdmin = loader.isUserAdmin();
       // initialize the View with sample types, spaces and the dictionaries of tissues and species
       initView(dbm, vocabs, userID);
       layout.addComponent(tabs);
+      if (!loader.getFailedLookups().isEmpty())
+        offerRetry(layout, loader, dbm, userID);
     }
     if (LiferayAndVaadinUtils.isLiferayPortlet())
       try {
@@ -202,6 +199,54 @@ public class ProjectwizardUI extends UI {
     }
   }
 
+  /**
+   * Tells the user that some information could not be loaded and adds a button loading everything
+   * again, which replaces the wizard views if it succeeds
+   */
+  private void offerRetry(final VerticalLayout layout, final StartupDataLoader loader,
+      final DBManager dbm, final String userID) {
+    final Button retry = new Button("Retry loading");
+    retry.setIcon(FontAwesome.REFRESH);
+    retry.addClickListener(new Button.ClickListener() {
+
+      @Override
+      public void buttonClick(ClickEvent event) {
+        DBVocabularies vocabs = loader.load(userID);
+        isAdmin = loader.isUserAdmin();
+        initView(dbm, vocabs, userID);
+        if (loader.getFailedLookups().isEmpty()) {
+          layout.removeComponent(retry);
+          Styles.notification("Information loaded", "All information was loaded.",
+              NotificationType.SUCCESS);
+        } else
+          notifyIncompleteStartup(loader.getFailedLookups());
+      }
+    });
+    layout.addComponent(retry, layout.getComponentIndex(tabs));
+    notifyIncompleteStartup(loader.getFailedLookups());
+  }
+
+  private void notifyIncompleteStartup(List<String> failed) {
+    Styles.notification("Information incomplete",
+        "Some information could not be loaded from the data management system (" + failed
+            + "). Some options might be missing. Please use 'Retry loading' or try again later.",
+        NotificationType.ERROR);
+  }
+
+  @Override
+  public void detach() {
+    // the session ended or the portlet was closed, the current designs are not needed anymore
+    cleanUpControllers();
+    super.detach();
+  }
+
+  private void cleanUpControllers() {
+    if (wizardController != null)
+      wizardController.cleanUp();
+    if (importController != null)
+      importController.cleanUp();
+  }
+
   boolean isDevelopment() {
     boolean devEnv = false;
     try {
@@ -222,8 +267,17 @@ public class ProjectwizardUI extends UI {
     AttachmentConfig attachConfig =
         new AttachmentConfig(Integer.parseInt(config.getAttachmentMaxSize()),
             config.getAttachmentURI(), config.getAttachmentUser(), config.getAttachmenPassword());
-    WizardController c = new WizardController(openbis, dbm, vocabularies, attachConfig);
+    DesignSizeEstimator sizeEstimator = new DesignSizeEstimator(
+        parseSetting("max.tier.samples", config.getMaxTierSamples(),
+            DesignSizeEstimator.DEFAULT_MAX_TIER_SAMPLES),
+        parseSetting("max.design.samples", config.getMaxDesignSamples(),
+            DesignSizeEstimator.DEFAULT_MAX_DESIGN_SAMPLES));
+    cleanUpControllers();
+    WizardController c =
+        new WizardController(openbis, dbm, vocabularies, attachConfig, sizeEstimator);
+    wizardController = c;
     c.init(user);
+    final AsyncDBManager asyncDBM = new AsyncDBManager(dbm);
     Wizard w = c.getWizard();
     WizardProgressListener wl = new WizardProgressListener() {
 
@@ -235,14 +289,14 @@ public class ProjectwizardUI extends UI {
 
       @Override
       public void wizardCompleted(WizardCompletedEvent event) {
-        vocabularies.setPeople(dbm.fetchPeople());
+        vocabularies.setPeople(asyncDBM.fetchPeople(vocabularies.getPeople()));
         vocabularies.setSpaces(openbis.getUserSpaces(user));
         initView(dbm, vocabularies, user);
       }
 
       @Override
       public void wizardCancelled(WizardCancelledEvent event) {
-        vocabularies.setPeople(dbm.fetchPeople());
+        vocabularies.setPeople(asyncDBM.fetchPeople(vocabularies.getPeople()));
         vocabularies.setSpaces(openbis.getUserSpaces(user));
         initView(dbm, vocabularies, user);
       }
@@ -280,6 +334,7 @@ public class ProjectwizardUI extends UI {
 
     ExperimentImportController uc =
         new ExperimentImportController(creationController, vocabularies, openbis, dbm);
+    importController = uc;
     uc.init(user);
     tabs.addTab(uc.getView(), "Import Project").setIcon(FontAwesome.FILE);
 
@@ -297,6 +352,21 @@ public class ProjectwizardUI extends UI {
       logger.info("User can overwrite existing metadata for their project.");
   }
 
+  private long parseSetting(String key, String value, long defaultValue) {
+    if (value == null || value.trim().isEmpty())
+      return defaultValue;
+    try {
+      long res = Long.parseLong(value.trim());
+      if (res >= 0)
+        return res;
+    } catch (NumberFormatException e) {
+      // logged below
+    }
+    logger.warn(key + " = " + value + " is not a valid number, using " + defaultValue);
+    return defaultValue;
+  }
+
+
   // TODO group that might be used to delete metadata or even sample/experiment objects in the
   // future
   private boolean canDelete() {
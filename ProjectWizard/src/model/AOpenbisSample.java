@@ -38,7 +38,7 @@ public abstract class AOpenbisSample {
   private String code;
   private String experiment;
   private String Q_SECONDARY_NAME;
-  private List<Property> factors;
+  private FactorVector factors;
   private String Q_ADDITIONAL_NOTES;
   private String parent;
   private String Q_EXTERNALDB_ID;
@@ -63,7 +63,7 @@ public abstract class AOpenbisSample {
     this.sampleType = sampleType;
     this.Q_ADDITIONAL_NOTES = additionalNotes;
     this.Q_SECONDARY_NAME = secondaryName;
-    this.factors = factors;
+    this.factors = FactorVector.of(factors);
     this.parent = parent;
     this.Q_EXTERNALDB_ID = externalID;
   }
@@ -76,7 +76,7 @@ public abstract class AOpenbisSample {
     this.Q_SECONDARY_NAME = secondaryName;
     this.Q_ADDITIONAL_NOTES = additionalNotes;
     this.Q_EXTERNALDB_ID = externalID;
-    this.factors = factors;
+    this.factors = FactorVector.of(factors);
     this.tempParentIDs = tempParentIDs;
   }
 
@@ -89,32 +89,16 @@ public abstract class AOpenbisSample {
     this.Q_SECONDARY_NAME = secondaryName;
     this.Q_ADDITIONAL_NOTES = additionalNotes;
     this.Q_EXTERNALDB_ID = externalID;
-    Map<String, Property> oldFactors = new HashMap<String, Property>();
     this.tempParentIDs = new ArrayList<Integer>();
     this.parent = "";
     for (AOpenbisSample s : parents) {
       this.tempParentIDs.add(s.getTempID());
       if (s.getCode() != null)
         parent += s.getCode() + " ";
-      for (Property f : s.getFactors()) {
-        String lab = f.getLabel();
-        if (oldFactors.containsKey(lab)) {
-          Property old = oldFactors.get(lab);
-          String value = old.getValue() + old.getUnit();
-          String newValue = f.getValue() + f.getUnit();
-          if (!value.equals(newValue))
-            oldFactors.put(lab, new Property(lab, "mixed", old.getType()));
-        } else
-          oldFactors.put(lab, f);
-      }
     }
     this.parent = parent.trim();
-    this.factors = new ArrayList<Property>();
-    if (parents.size() > 0) {
-      for (String lab : parents.get(0).getFactorLabels())
-        this.factors.add(oldFactors.get(lab));
-    }
-    this.factors.addAll(newFactors);
+    // parent factors are merged once per combination of parent conditions
+    this.factors = FactorVector.merge(parents, newFactors);
   }
 
   public List<AOpenbisSample> getParents() {
@@ -138,7 +122,7 @@ public abstract class AOpenbisSample {
   }
 
   public void setFactors(List<Property> factors) {
-    this.factors = factors;
+    this.factors = FactorVector.of(factors);
   }
 
   public void setQ_ADDITIONAL_NOTES(String q_ADDITIONAL_NOTES) {
@@ -264,6 +248,7 @@ public abstract class AOpenbisSample {
   }
 
   public void addFactor(Property factor) {
-    this.factors.add(factor);
+    // factor vectors are shared with other samples, so a new one is used
+    this.factors = FactorVector.of(factors).with(factor);
   }
 }
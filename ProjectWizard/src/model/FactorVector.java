@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package model;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+import properties.Property;
+
+/**
+ * Immutable list of the conditions (factors) of a sample. All samples of the same condition share
+ * one interned vector instead of holding their own copy of the list. The factors a child sample
+ * inherits from its parents are also computed once per combination of parent vectors.
+ *
+ * @author agent
+ *
+ */
+public final class FactorVector extends AbstractList<Property> implements RandomAccess {
+
+  public static final FactorVector EMPTY = new FactorVector(new Property[0]);
+  // vectors and merges kept for sharing. Samples are created by parallel tasks, so the maps are
+  // not locked. When they grow too large they are emptied, which only costs sharing, since
+  // vectors are compared by their factors.
+  private static final int MAX_SHARED = 10000;
+
+  private static final ConcurrentHashMap<FactorVector, FactorVector> interned =
+      new ConcurrentHashMap<FactorVector, FactorVector>();
+  private static final ConcurrentHashMap<List<FactorVector>, FactorVector> merged =
+      new ConcurrentHashMap<List<FactorVector>, FactorVector>();
+
+  private final Property[] factors;
+  private final int hash;
+
+  private FactorVector(Property[] factors) {
+    this.factors = factors;
+    this.hash = Arrays.hashCode(factors);
+  }
+
+  /**
+   * Returns the shared vector of a list of factors
+   *
+   * @param factors list of factors, may be null
+   * @return the interned vector, null if the list is null
+   */
+  public static FactorVector of(List<Property> factors) {
+    if (factors == null || factors instanceof FactorVector)
+      return (FactorVector) factors;
+    if (factors.isEmpty())
+      return EMPTY;
+    return intern(new FactorVector(factors.toArray(new Property[factors.size()])));
+  }
+
+  /**
+   * Returns the factors of a child sample: the factors of its parents, where factors with different
+   * values in different parents are "mixed", followed by the new factors of the child
+   *
+   * @param parents parent samples, the labels of the first parent are used
+   * @param newFactors factors added by the child
+   * @return the shared vector of the child
+   */
+  public static FactorVector merge(List<AOpenbisSample> parents, List<Property> newFactors) {
+    List<FactorVector> key = new ArrayList<FactorVector>(parents.size() + 1);
+    for (AOpenbisSample s : parents)
+      key.add(of(s.getFactors()));
+    key.add(of(newFactors));
+    FactorVector known = merged.get(key);
+    if (known != null)
+      return known;
+    Map<String, Property> oldFactors = new HashMap<String, Property>();
+    for (int i = 0; i < parents.size(); i++) {
+      for (Property f : key.get(i)) {
+        String lab = f.getLabel();
+        if (oldFactors.containsKey(lab)) {
+          Property old = oldFactors.get(lab);
+          String value = old.getValue() + old.getUnit();
+          String newValue = f.getValue() + f.getUnit();
+          if (!value.equals(newValue))
+            oldFactors.put(lab, new Property(lab, "mixed", old.getType()));
+        } else
+          oldFactors.put(lab, f);
+      }
+    }
+    FactorVector first = parents.isEmpty() ? EMPTY : key.get(0);
+    FactorVector added = key.get(parents.size());
+    Property[] res = new Property[first.size() + added.size()];
+    for (int i = 0; i < first.size(); i++)
+      res[i] = oldFactors.get(first.get(i).getLabel());
+    System.arraycopy(added.factors, 0, res, first.size(), added.size());
+    FactorVector vector = intern(new FactorVector(res));
+    if (merged.size() >= MAX_SHARED)
+      merged.clear();
+    merged.putIfAbsent(key, vector);
+    return vector;
+  }
+
+  private static FactorVector intern(FactorVector vector) {
+    FactorVector known = interned.get(vector);
+    if (known != null)
+      return known;
+    if (interned.size() >= MAX_SHARED)
+      interned.clear();
+    known = interned.putIfAbsent(vector, vector);
+    return known == null ? vector : known;
+  }
+
+  /**
+   * @param factor an additional factor
+   * @return the shared vector of these factors followed by the additional one
+   */
+  public FactorVector with(Property factor) {
+    Property[] res = Arrays.copyOf(factors, factors.length + 1);
+    res[factors.length] = factor;
+    return intern(new FactorVector(res));
+  }
+
+  @Override
+  public Property get(int index) {
+    return factors[index];
+  }
+
+  @Override
+  public int size() {
+    return factors.length;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this)
+      return true;
+    if (o instanceof FactorVector) {
+      FactorVector other = (FactorVector) o;
+      return hash == other.hash && Arrays.equals(factors, other.factors);
+    }
+    return super.equals(o);
+  }
+
+}
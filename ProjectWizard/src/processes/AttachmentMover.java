@@ -4,6 +4,7 @@ package processes;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.io.FileUtils;
 
@@ -51,6 +52,7 @@ public class AttachmentMover {
    * @param object
    * @return
    * @throws IOException
+   * @throws RejectedExecutionException if the server is too busy to move the attachments now
    */
   public void moveAttachments(final List<AttachmentInformation> attachments, final ProgressBar bar,
       final Label info, final MoveUploadsReadyRunnable ready) throws IOException {
@@ -58,7 +60,7 @@ public class AttachmentMover {
     ready.setSardine(sardine);
     final int todo = attachments.size();
     if (todo > 0) {
-      Thread t = new Thread(new Runnable() {
+      Runnable job = new Runnable() {
         volatile int current = 0;
 
         @Override
@@ -96,8 +98,13 @@ public class AttachmentMover {
             e.printStackTrace();
           }
         }
-      });
-      t.start();
+      };
+      try {
+        JobScheduler.Instance.submit(attachments.get(0).getUser(), "Moving attachments", job);
+      } catch (RejectedExecutionException e) {
+        sardine.shutdown();
+        throw e;
+      }
       UI.getCurrent().setPollInterval(100);
     } else {
       UI.getCurrent().access(ready);
@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package processes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vaadin.ui.UI;
+
+import logging.Log4j2Logger;
+
+/**
+ * Runs long jobs (registration, spreadsheet preparation, moving attachments) for all UIs on a
+ * fixed number of worker threads. Every user has an own queue and workers take jobs from the
+ * queues in turn, so one user starting many jobs does not block everybody else. Queues are limited
+ * per user and overall; jobs over the limits are rejected. Long running jobs never occupy all
+ * workers, so short jobs can always start. Work that jobs split up, like the sample batches of a
+ * registration, runs on a shared pool of batch workers, which bounds the load on openBIS for all
+ * jobs together. The state of jobs can be polled or listened to.
+ *
+ * @author agent
+ *
+ */
+public enum JobScheduler {
+  Instance;
+
+  public static final int WORKERS = 4;
+  // workers that long running jobs like registrations may occupy at the same time
+  public static final int MAX_LONG_RUNNING = WORKERS - 1;
+  // threads shared by all jobs for work they split up, e.g. sample batches sent to openBIS
+  public static final int BATCH_WORKERS = 4;
+  public static final int MAX_QUEUED_PER_USER = 5;
+  public static final int MAX_QUEUED = 50;
+  // finished jobs are kept for status requests until this many jobs are known
+  private static final int MAX_KNOWN_JOBS = 200;
+
+  logging.Logger logger = new Log4j2Logger(JobScheduler.class);
+
+  public enum JobState {
+    QUEUED, RUNNING, DONE, FAILED, CANCELLED
+  }
+
+  /**
+   * Informs about jobs changing their state. Called from the worker thread, so listeners updating
+   * a UI have to use {@link UI#access(Runnable)}.
+   */
+  public interface JobListener {
+    void jobChanged(Job job);
+  }
+
+  /**
+   * A job and its current state
+   */
+  public class Job {
+    private final long id;
+    private final String user;
+    private final String name;
+    private final Runnable task;
+    private final boolean longRunning;
+    private final UI ui;
+    private final long submitted;
+    private volatile long started;
+    private volatile long finished;
+    private volatile JobState state = JobState.QUEUED;
+
+    private Job(long id, String user, String name, Runnable task, boolean longRunning, UI ui) {
+      this.id = id;
+      this.user = user;
+      this.name = name;
+      this.task = task;
+      this.longRunning = longRunning;
+      this.ui = ui;
+      this.submitted = System.currentTimeMillis();
+    }
+
+    public long getID() {
+      return id;
+    }
+
+    public String getUser() {
+      return user;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public JobState getState() {
+      return state;
+    }
+
+    public long getSubmitted() {
+      return submitted;
+    }
+
+    public long getStarted() {
+      return started;
+    }
+
+    public long getFinished() {
+      return finished;
+    }
+
+    /**
+     * @return number of jobs of the same user before this one, -1 if it is not queued
+     */
+    public int getQueuePosition() {
+      return JobScheduler.this.getQueuePosition(this);
+    }
+  }
+
+  private final Object lock = new Object();
+  private final LinkedHashMap<String, LinkedList<Job>> queues =
+      new LinkedHashMap<String, LinkedList<Job>>();
+  private final LinkedHashMap<Long, Job> jobs = new LinkedHashMap<Long, Job>();
+  private final List<JobListener> listeners = new CopyOnWriteArrayList<JobListener>();
+  private final AtomicLong ids = new AtomicLong();
+  private int queued = 0;
+  private int runningLong = 0;
+  private final ExecutorService batchExecutor;
+
+  private JobScheduler() {
+    batchExecutor = Executors.newFixedThreadPool(BATCH_WORKERS, new ThreadFactory() {
+      private int count = 0;
+
+      @Override
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "batch-worker-" + (++count));
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    for (int i = 1; i <= WORKERS; i++) {
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      }, "job-worker-" + i);
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Queues a short job, see {@link #submit(String, String, Runnable, boolean)}
+   */
+  public Job submit(String user, String name, Runnable task) {
+    return submit(user, name, task, false);
+  }
+
+  /**
+   * Queues a job. The UI of the calling thread is made current while the job runs, so the job can
+   * use {@link UI#getCurrent()} like before.
+   *
+   * @param user user starting the job
+   * @param name short description of the job for logs and status displays
+   * @param task the work to do
+   * @param longRunning true if the job may take minutes, e.g. waiting for openBIS. At most
+   *        {@link #MAX_LONG_RUNNING} of these jobs run at the same time.
+   * @return the job, which can be used to check its state
+   * @throws RejectedExecutionException if the user or the scheduler has too many queued jobs
+   */
+  public Job submit(String user, String name, Runnable task, boolean longRunning) {
+    if (user == null)
+      user = "";
+    Job job = new Job(ids.incrementAndGet(), user, name, task, longRunning, UI.getCurrent());
+    synchronized (lock) {
+      LinkedList<Job> queue = queues.get(user);
+      if (queue == null) {
+        queue = new LinkedList<Job>();
+        queues.put(user, queue);
+      }
+      if (queue.size() >= MAX_QUEUED_PER_USER || queued >= MAX_QUEUED) {
+        logger.warn("Rejected job '" + name + "' of " + user + ": " + queue.size()
+            + " jobs of this user and " + queued + " jobs overall are waiting.");
+        throw new RejectedExecutionException("Too many jobs are waiting. Please try again later.");
+      }
+      queue.add(job);
+      queued++;
+      jobs.put(job.id, job);
+      forgetOldJobs();
+      lock.notifyAll();
+    }
+    logger.info("Queued job '" + name + "' of " + user);
+    fireChanged(job);
+    return job;
+  }
+
+  /**
+   * Cancels a job if it did not start yet
+   *
+   * @return true if the job was removed from the queue
+   */
+  public boolean cancel(Job job) {
+    synchronized (lock) {
+      LinkedList<Job> queue = queues.get(job.user);
+      if (queue == null || !queue.remove(job))
+        return false;
+      queued--;
+      job.state = JobState.CANCELLED;
+    }
+    fireChanged(job);
+    return true;
+  }
+
+  public Job getJob(long id) {
+    synchronized (lock) {
+      return jobs.get(id);
+    }
+  }
+
+  /**
+   * @return the known jobs of a user, oldest first
+   */
+  public List<Job> getJobsOfUser(String user) {
+    List<Job> res = new ArrayList<Job>();
+    synchronized (lock) {
+      for (Job j : jobs.values())
+        if (j.user.equals(user))
+          res.add(j);
+    }
+    return res;
+  }
+
+  /**
+   * @return number of jobs in each state
+   */
+  public Map<JobState, Integer> getStatistics() {
+    Map<JobState, Integer> res = new HashMap<JobState, Integer>();
+    for (JobState s : JobState.values())
+      res.put(s, 0);
+    synchronized (lock) {
+      for (Job j : jobs.values())
+        res.put(j.state, res.get(j.state) + 1);
+    }
+    return res;
+  }
+
+  /**
+   * Executor for work a running job splits up, e.g. sample batches sent to openBIS in parallel.
+   * It is shared by all jobs and must not be shut down. Tasks must not wait for other tasks of
+   * this executor.
+   */
+  public ExecutorService getBatchExecutor() {
+    return batchExecutor;
+  }
+
+  public void addListener(JobListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(JobListener listener) {
+    listeners.remove(listener);
+  }
+
+  private int getQueuePosition(Job job) {
+    synchronized (lock) {
+      LinkedList<Job> queue = queues.get(job.user);
+      return queue == null ? -1 : queue.indexOf(job);
+    }
+  }
+
+  /**
+   * Takes the first job of the next user with waiting jobs that can start. The user is moved to
+   * the end, so users take turns. Users whose next job is long running are skipped while the
+   * maximum number of long running jobs is running.
+   */
+  private Job take() throws InterruptedException {
+    synchronized (lock) {
+      while (true) {
+        Iterator<Map.Entry<String, LinkedList<Job>>> it = queues.entrySet().iterator();
+        while (it.hasNext()) {
+          Map.Entry<String, LinkedList<Job>> e = it.next();
+          LinkedList<Job> queue = e.getValue();
+          if (queue.isEmpty()) {
+            it.remove();
+            continue;
+          }
+          Job job = queue.getFirst();
+          if (job.longRunning && runningLong >= MAX_LONG_RUNNING)
+            continue;
+          it.remove();
+          queue.removeFirst();
+          queued--;
+          if (job.longRunning)
+            runningLong++;
+          if (!queue.isEmpty())
+            queues.put(e.getKey(), queue);
+          return job;
+        }
+        lock.wait();
+      }
+    }
+  }
+
+  private void work() {
+    while (true) {
+      Job job;
+      try {
+        job = take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      job.state = JobState.RUNNING;
+      job.started = System.currentTimeMillis();
+      fireChanged(job);
+      UI.setCurrent(job.ui);
+      try {
+        job.task.run();
+        job.state = JobState.DONE;
+      } catch (Throwable t) {
+        logger.error("Job '" + job.name + "' of " + job.user + " failed.", t);
+        job.state = JobState.FAILED;
+      } finally {
+        UI.setCurrent(null);
+        if (job.longRunning) {
+          synchronized (lock) {
+            runningLong--;
+            lock.notifyAll();
+          }
+        }
+      }
+      job.finished = System.currentTimeMillis();
+      logger.info("Job '" + job.name + "' of " + job.user + " finished after waiting "
+          + (job.started - job.submitted) + " ms and running " + (job.finished - job.started)
+          + " ms.");
+      fireChanged(job);
+    }
+  }
+
+  private void forgetOldJobs() {
+    Iterator<Job> it = jobs.values().iterator();
+    while (jobs.size() > MAX_KNOWN_JOBS && it.hasNext()) {
+      JobState s = it.next().state;
+      if (s != JobState.QUEUED && s != JobState.RUNNING)
+        it.remove();
+    }
+  }
+
+  private void fireChanged(Job job) {
+    for (JobListener l : listeners) {
+      try {
+        l.jobChanged(job);
+      } catch (Exception e) {
+        logger.error("Job listener failed.", e);
+      }
+    }
+  }
+
+}
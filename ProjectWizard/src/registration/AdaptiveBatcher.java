@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package registration;
+
+import logging.Log4j2Logger;
+
+/**
+ * Chooses the number of samples sent to the ingestion service at once. The time each batch takes
+ * is measured and the size is moved towards the size that should take the target latency: big
+ * enough to keep the number of calls low, small enough to stay clear of DSS timeouts. Sizes and
+ * throughput are logged, the statistics of the shared batcher are also shown to admins.
+ *
+ * @author agent
+ *
+ */
+public class AdaptiveBatcher {
+
+  public static final int DEFAULT_MIN_SIZE = 10;
+  public static final int DEFAULT_MAX_SIZE = 500;
+  public static final long DEFAULT_TARGET_LATENCY_MILLIS = 10000;
+
+  logging.Logger logger = new Log4j2Logger(AdaptiveBatcher.class);
+
+  private final int minSize;
+  private final int maxSize;
+  private final long targetLatency;
+  private int size;
+
+  private long batches = 0;
+  private long samples = 0;
+  private long millis = 0;
+
+  public AdaptiveBatcher(int initialSize) {
+    this(initialSize, DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_TARGET_LATENCY_MILLIS);
+  }
+
+  public AdaptiveBatcher(int initialSize, int minSize, int maxSize, long targetLatencyMillis) {
+    this.minSize = Math.max(1, minSize);
+    this.maxSize = Math.max(this.minSize, maxSize);
+    this.targetLatency = targetLatencyMillis;
+    this.size = clamp(initialSize);
+  }
+
+  /**
+   * @return the number of samples the next batch should contain
+   */
+  public synchronized int getBatchSize() {
+    return size;
+  }
+
+  /**
+   * Records how long a batch took and adapts the batch size. The new size is halfway between the
+   * old size and the size expected to take the target latency, so single slow batches don't make
+   * the size jump.
+   *
+   * @param batchSize number of samples in the batch
+   * @param batchMillis time from sending the batch until it was registered
+   */
+  public synchronized void record(int batchSize, long batchMillis) {
+    batches++;
+    samples += batchSize;
+    millis += batchMillis;
+    int old = size;
+    if (batchSize > 0) {
+      double perSample = Math.max(1, batchMillis) / (double) batchSize;
+      int ideal = (int) (targetLatency / perSample);
+      size = clamp((old + ideal) / 2);
+    }
+    logger.info("Batch of " + batchSize + " samples took " + batchMillis + " ms ("
+        + String.format("%.1f", batchSize * 1000.0 / Math.max(1, batchMillis))
+        + " samples/s). Batch size " + old + " -> " + size);
+  }
+
+  public synchronized long getNumberOfBatches() {
+    return batches;
+  }
+
+  public synchronized long getNumberOfSamples() {
+    return samples;
+  }
+
+  /**
+   * @return registered samples per second over all recorded batches
+   */
+  public synchronized double getThroughput() {
+    return millis == 0 ? 0 : samples * 1000.0 / millis;
+  }
+
+  private int clamp(int value) {
+    return Math.max(minSize, Math.min(maxSize, value));
+  }
+
+}
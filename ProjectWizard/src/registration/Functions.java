@@ -4,6 +4,8 @@ package registration;
 import java.util.ArrayList;
 import java.util.List;
 
+import control.BarcodeCodec;
+
 /**
  * Helper functions used for sample creation
  * 
@@ -19,8 +21,7 @@ public class Functions {
    * @return true if String is a QBiC barcode, false if not
    */
   public static boolean isQbicBarcode(String code) {
-    String pattern = "Q[A-Z0-9]{4}[0-9]{3}[A-Z0-9]{2}";
-    return code.matches(pattern);
+    return BarcodeCodec.isValid(code);
   }
 
   /**
@@ -93,11 +94,7 @@ public class Functions {
    * @return char representing the input number
    */
   public static char mapToChar(int i) {
-    i += 48;
-    if (i > 57) {
-      i += 7;
-    }
-    return (char) i;
+    return BarcodeCodec.mapToChar(i);
   }
 
   public static float getPercentageStep(int max) {
@@ -113,13 +110,7 @@ public class Functions {
    * @return Character representing the checksum of the input String.
    */
   public static char checksum(String s) {
-    int i = 1;
-    int sum = 0;
-    for (int idx = 0; idx <= s.length() - 1; idx++) {
-      sum += (((int) s.charAt(idx))) * i;
-      i += 1;
-    }
-    return mapToChar(sum % 34);
+    return BarcodeCodec.checksum(s);
   }
 
   /**
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package registration;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Experiment;
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
+import life.qbic.openbis.openbisclient.IOpenBisClient;
+import logging.Log4j2Logger;
+
+/**
+ * Waits for entities sent to an ingestion service to show up in openBIS. All pending codes are
+ * checked with one probe, and the time between probes grows exponentially (with some jitter, so
+ * parallel registrations don't probe in lockstep). Every wait is bounded by its own timeout. All
+ * waits of an awaiter also give up if none of them found an entity for a while, so a large
+ * registration can take as long as it needs while it makes progress, but a stuck one ends.
+ *
+ * @author agent
+ *
+ */
+public class MaterializationAwaiter {
+
+  public static final long INITIAL_DELAY_MILLIS = 50;
+  public static final long MAX_DELAY_MILLIS = 2000;
+  // minimum time between two fetches of all samples of a project by the same probe
+  public static final long SNAPSHOT_MILLIS = 500;
+
+  logging.Logger logger = new Log4j2Logger(MaterializationAwaiter.class);
+  private final long maxStallMillis;
+  // last time an entity was found by one of the waits, or when the awaiter was created
+  private volatile long lastProgress;
+  private final Random random = new Random();
+
+  /**
+   * Checks which of the pending codes exist in openBIS
+   */
+  public interface Probe {
+    /**
+     * @param pending codes of entities not found yet
+     * @return the subset of the pending codes that exists now
+     */
+    Collection<String> findExisting(Collection<String> pending);
+  }
+
+  /**
+   * @param maxStallMillis time the waits of this awaiter may go on without any entity showing up
+   */
+  public MaterializationAwaiter(long maxStallMillis) {
+    this.maxStallMillis = maxStallMillis;
+    this.lastProgress = System.currentTimeMillis();
+  }
+
+  /**
+   * Blocks until all codes were found by the probe
+   *
+   * @param codes codes of the registered entities
+   * @param probe probe used to check which entities exist
+   * @param timeoutMillis maximum time to wait for these entities
+   * @throws MaterializationTimeoutException if some entities were not found in time or nothing
+   *         was found for too long
+   */
+  public void await(Collection<String> codes, Probe probe, long timeoutMillis)
+      throws MaterializationTimeoutException {
+    long start = System.currentTimeMillis();
+    Set<String> pending = new LinkedHashSet<String>(codes);
+    long delay = INITIAL_DELAY_MILLIS;
+    int probes = 0;
+    while (true) {
+      probes++;
+      if (pending.removeAll(probe.findExisting(pending)))
+        lastProgress = System.currentTimeMillis();
+      if (pending.isEmpty()) {
+        logger.debug(codes.size() + " entities found after " + probes + " probes and "
+            + (System.currentTimeMillis() - start) + " ms");
+        return;
+      }
+      long stallEnd = lastProgress + maxStallMillis;
+      long end = Math.min(start + timeoutMillis, stallEnd);
+      long left = end - System.currentTimeMillis();
+      if (left <= 0)
+        throw new MaterializationTimeoutException(pending, System.currentTimeMillis() - start,
+            end == stallEnd);
+      // equal jitter: wait between half and the full current delay
+      long sleep = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+      try {
+        Thread.sleep(Math.min(sleep, left));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new MaterializationTimeoutException(pending, System.currentTimeMillis() - start,
+            true);
+      }
+      delay = Math.min(delay * 2, MAX_DELAY_MILLIS);
+    }
+  }
+
+  /**
+   * Probe for samples of one project. A single pending code is checked directly. Several codes are
+   * checked against a snapshot of the project's samples, which is fetched again at most every
+   * {@link #SNAPSHOT_MILLIS}. The snapshot is shared by all waits using this probe, so parallel
+   * batches of one registration should share one probe.
+   */
+  public static Probe samplesOfProject(final IOpenBisClient openbis, final String space,
+      final String project) {
+    return new Probe() {
+      // codes found in the project so far, samples are not removed while they are registered
+      private final Set<String> known = new HashSet<String>();
+      private long fetched = 0;
+
+      @Override
+      public synchronized Collection<String> findExisting(Collection<String> pending) {
+        Set<String> missing = new HashSet<String>(pending);
+        missing.removeAll(known);
+        if (missing.size() == 1) {
+          String code = missing.iterator().next();
+          if (openbis.sampleExists(code))
+            known.add(code);
+        } else if (!missing.isEmpty()
+            && System.currentTimeMillis() - fetched >= SNAPSHOT_MILLIS) {
+          for (Sample s : openbis.getSamplesOfProject("/" + space + "/" + project))
+            known.add(s.getCode());
+          fetched = System.currentTimeMillis();
+        }
+        Set<String> res = new HashSet<String>(pending);
+        res.retainAll(known);
+        return res;
+      }
+    };
+  }
+
+  /**
+   * Probe for experiments of one project. Several codes are checked with a single fetch of the
+   * project's experiments.
+   */
+  public static Probe experimentsOfProject(final IOpenBisClient openbis, final String space,
+      final String project) {
+    return new Probe() {
+      @Override
+      public Collection<String> findExisting(Collection<String> pending) {
+        Set<String> res = new HashSet<String>();
+        if (pending.size() == 1) {
+          String code = pending.iterator().next();
+          if (openbis.expExists(space, project, code))
+            res.add(code);
+        } else {
+          for (Experiment e : openbis.getExperimentsOfProjectByCode(project))
+            res.add(e.getCode());
+        }
+        return res;
+      }
+    };
+  }
+
+  /**
+   * Probe for projects of one space
+   */
+  public static Probe projectsOfSpace(final IOpenBisClient openbis, final String space) {
+    return new Probe() {
+      @Override
+      public Collection<String> findExisting(Collection<String> pending) {
+        Set<String> res = new HashSet<String>();
+        for (String code : pending)
+          if (openbis.projectExists(space, code))
+            res.add(code);
+        return res;
+      }
+    };
+  }
+
+}
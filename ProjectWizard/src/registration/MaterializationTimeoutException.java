@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package registration;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Thrown if registered entities did not show up in openBIS in time
+ *
+ * @author agent
+ *
+ */
+public class MaterializationTimeoutException extends Exception {
+
+  private static final long serialVersionUID = -3049474938412807216L;
+  private final List<String> missing;
+  private final boolean stalled;
+
+  public MaterializationTimeoutException(Collection<String> missing, long waitedMillis,
+      boolean stalled) {
+    super(missing.size() + " entities did not appear in openBIS after " + waitedMillis + " ms"
+        + (stalled ? " (registration stopped making progress)" : "") + ": " + missing);
+    this.missing = new ArrayList<String>(missing);
+    this.stalled = stalled;
+  }
+
+  /**
+   * @return codes of the entities that could not be found
+   */
+  public List<String> getMissing() {
+    return missing;
+  }
+
+  /**
+   * @return true if no entity of the awaiter showed up for too long, so waiting any longer makes
+   *         no sense
+   */
+  public boolean isStalled() {
+    return stalled;
+  }
+}
@@ -2,9 +2,15 @@ package registration;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.xml.bind.JAXBException;
 
@@ -21,7 +27,15 @@ import com.vaadin.ui.Label;
 import com.vaadin.ui.ProgressBar;
 import com.vaadin.ui.UI;
 
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.SearchCriteria;
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.SearchCriteria.MatchClause;
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.SearchCriteria.MatchClauseAttribute;
+import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.SearchCriteria.SearchOperator;
 import concurrency.UpdateProgressBar;
+import control.IdentifierReservations;
+import processes.JobScheduler;
+import io.ProjectSampleCache;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 
 
@@ -34,16 +48,41 @@ import life.qbic.openbis.openbisclient.IOpenBisClient;
  */
 public class OpenbisCreationController {
   final int RETRY_UNTIL_SECONDS_PASSED = 5;
-  final int SPLIT_AT_ENTITY_SIZE = 100;
+  // a registration is given up if none of its entities showed up in openBIS for this long
+  final int REGISTRATION_STALL_MINUTES = 10;
+  public static final int INITIAL_BATCH_SIZE = 100;
+  // batch sizes adapt to the latency of the ingestion service, which all registrations share
+  private static final AdaptiveBatcher batcher = new AdaptiveBatcher(INITIAL_BATCH_SIZE);
+  public static final int DEFAULT_PARALLEL_BATCHES = 4;
+  // sample codes looked up with one search, keeps the queries sent to openBIS small
+  static final int CODES_PER_SEARCH = 500;
   private IOpenBisClient openbis;
   logging.Logger logger = new Log4j2Logger(OpenbisCreationController.class);
-  private String errors;
+  // registrations send batches from several threads, errors of all of them are kept
+  private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+  private int maxParallelBatches = DEFAULT_PARALLEL_BATCHES;
 
 
+  /**
+   * @return the batcher shared by all sample registrations, e.g. to show its statistics
+   */
+  public static AdaptiveBatcher getBatcher() {
+    return batcher;
+  }
+
   public OpenbisCreationController(IOpenBisClient openbis) {
     this.openbis = openbis;
   }
 
+  /**
+   * Sets how many sample batches may be registered at the same time
+   * 
+   * @param max maximum number of batches in flight
+   */
+  public void setMaxParallelBatches(int max) {
+    this.maxParallelBatches = max;
+  }
+
   /**
    * Interact with an ingestion service script registered for the openBIS instance
    * 
@@ -84,10 +123,11 @@ public class OpenbisCreationController {
    * @return false, if the specified space doesn't exist, resulting in failure, true otherwise
    */
   public boolean registerProject(String space, String name, String description, String user) {
-    errors = "";
+    errors.clear();
     if (!openbis.spaceExists(space)) {
-      errors = space + " does not exist!";
-      logger.error(errors);
+      String error = space + " does not exist!";
+      errors.add(error);
+      logger.error(error);
       return false;
     }
     logger.info("Creating project " + name + " in space " + space);
@@ -101,6 +141,7 @@ public class OpenbisCreationController {
     params.put("space", space);
     params.put("desc", description);
     openbis.ingest("DSS1", "register-proj", params);
+    ProjectSampleCache.Instance.invalidate(name);
     return true;
   }
 
@@ -117,10 +158,11 @@ public class OpenbisCreationController {
   public boolean registerExperiment(String space, String project, String experimentType,
       String name, Map<String, Object> map, String user) {
     logger.info("Creating experiment " + name);
-    errors = "";
+    errors.clear();
     if (!openbis.projectExists(space, project)) {
-      errors = project + " in " + space + " does not exist.";
-      logger.error(errors);
+      String error = project + " in " + space + " does not exist.";
+      errors.add(error);
+      logger.error(error);
       return false;
     }
     Map<String, Object> params = new HashMap<String, Object>();
@@ -131,14 +173,20 @@ public class OpenbisCreationController {
     params.put("properties", map);
     params.put("user", user);
     openbis.ingest("DSS1", "register-exp", params);
+    ProjectSampleCache.Instance.invalidate(project);
+    IdentifierReservations.Instance.registered(project, Arrays.asList(name));
     return true;
   }
 
   public boolean registerExperiments(String space, String proj, List<RegisterableExperiment> exps,
       String user) {
-    errors = "";
-    int step = 100;
-    int max = RETRY_UNTIL_SECONDS_PASSED * 1000;
+    return registerExperiments(space, proj, exps, user,
+        new MaterializationAwaiter(RETRY_UNTIL_SECONDS_PASSED * 1000));
+  }
+
+  private boolean registerExperiments(String space, String proj,
+      List<RegisterableExperiment> exps, String user, MaterializationAwaiter awaiter) {
+    errors.clear();
     List<String> codes = new ArrayList<String>();
     List<String> types = new ArrayList<String>();
     List<Map<String, Object>> props = new ArrayList<Map<String, Object>>();
@@ -150,21 +198,16 @@ public class OpenbisCreationController {
       }
     }
     if (codes.size() > 0) {
-      while (!openbis.projectExists(space, proj) && max > 0) {
-        try {
-          Thread.sleep(step);
-          max -= step;
-        } catch (InterruptedException e) {
-          logger.error("thread sleep waiting for experiment creation interruped.");
-          e.printStackTrace();
-        }
-      }
-      logger.info("Creating experiments " + codes);
-      if (!openbis.projectExists(space, proj)) {
-        errors = proj + " in " + space + " does not exist. Not creating experiments.";
-        logger.error(errors);
+      try {
+        awaiter.await(Arrays.asList(proj), MaterializationAwaiter.projectsOfSpace(openbis, space),
+            RETRY_UNTIL_SECONDS_PASSED * 1000);
+      } catch (MaterializationTimeoutException e) {
+        String error = proj + " in " + space + " does not exist. Not creating experiments.";
+        errors.add(error);
+        logger.error(error);
         return false;
       }
+      logger.info("Creating experiments " + codes);
       Map<String, Object> params = new HashMap<String, Object>();
       params.put("codes", codes);
       params.put("types", types);
@@ -173,6 +216,8 @@ public class OpenbisCreationController {
       params.put("properties", props);
       params.put("user", user);
       openbis.ingest("DSS1", "register-exp", params);
+      ProjectSampleCache.Instance.invalidate(proj);
+      IdentifierReservations.Instance.registered(proj, codes);
     }
     return true;
   }
@@ -235,22 +280,6 @@ public class OpenbisCreationController {
     }
   }
 
-  private List<List<ISampleBean>> splitSamplesIntoBatches(List<ISampleBean> samples,
-      int targetSize) {
-    List<List<ISampleBean>> res = new ArrayList<List<ISampleBean>>();
-    int size = samples.size();
-    if (size < targetSize)
-      return new ArrayList<List<ISampleBean>>(Arrays.asList(samples));
-    for (int i = 0; i < size / targetSize; i++) {
-      int from = i * targetSize;
-      int to = (i + 1) * targetSize;
-      res.add(samples.subList(from, to));
-      if (to > size - targetSize && to != size)
-        res.add(samples.subList(to, size));
-    }
-    return res;
-  }
-
   /**
    * this is the one normally called!
    * 
@@ -266,14 +295,17 @@ public class OpenbisCreationController {
       final List<List<ISampleBean>> tsvSampleHierarchy, final String description,
       final List<OpenbisExperiment> informativeExperiments, final ProgressBar bar, final Label info,
       final Runnable ready, final String user, final boolean isPilot) {
-    errors = "";
+    errors.clear();
 
     logger.debug("User sending samples: " + user);
-    Thread t = new Thread(new Runnable() {
+    Runnable job = new Runnable() {
       volatile int current = -1;
 
       @Override
       public void run() {
+        // created when the job starts, time spent in the queue does not count
+        MaterializationAwaiter awaiter =
+            new MaterializationAwaiter(REGISTRATION_STALL_MINUTES * 60 * 1000);
         info.setCaption("Collecting information");
         UI.getCurrent().access(new UpdateProgressBar(bar, info, 0.01));
         RegisterableProject p = new RegisterableProject(tsvSampleHierarchy, description,
@@ -283,116 +315,119 @@ public class OpenbisCreationController {
         String project = p.getProjectCode();
         String desc = p.getDescription();
 
-        int splitSteps = 0;
-        // find out which experiments have so many samples they should be sent in multiple packages
-        for (RegisterableExperiment exp : exps) {
-          splitSteps += exp.getSamples().size() / (SPLIT_AT_ENTITY_SIZE + 1);
-        }
-
-        // final int todo = exps.size() + splitSteps + 1;// TODO huge number of samples should be
-        // split
-        // into groups
-        final int todo = tsvSampleHierarchy.size() + splitSteps + 1;
-        // of 50 or 100. this needs to be reflected in the progress
-        // bar
+        final int todo = 3;
         current++;
         double frac = current * 1.0 / todo;
         info.setCaption("Registering Project and Experiments");
         UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
         if (!openbis.projectExists(space, project))
           registerProject(space, project, desc, user);
-        boolean success = registerExperiments(space, project, exps, user);
+        boolean success = registerExperiments(space, project, exps, user, awaiter);
         if (!success) {
           // experiments were not registered, break registration
-          errors = "Experiments could not be registered.";
-          bar.setVisible(false);
-          info.setCaption("An error occured.");
-          UI.getCurrent().setPollInterval(-1);
-          UI.getCurrent().access(ready);
+          errors.add("Experiments could not be registered.");
+          fail();
           return;
         }
 
-        try {
-          Thread.sleep(500);
-        } catch (InterruptedException e) {
-          logger.error("thread sleep waiting for experiment creation interruped.");
-          e.printStackTrace();
-        }
-        // for (RegisterableExperiment exp : exps) { old version!
-        int i = 0;
-        for (List<ISampleBean> level : tsvSampleHierarchy) {
-          i++;
-          logger.info("registration of level " + i);
-          // List<ISampleBean> level = exp.getSamples(); old version!
-          info.setCaption("Registering samples");
-          current++;
-          frac = current * 1.0 / todo;
-          UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
-          boolean batchSuccess;
-          if (level.size() > SPLIT_AT_ENTITY_SIZE) {
-            for (List<ISampleBean> batch : splitSamplesIntoBatches(level, SPLIT_AT_ENTITY_SIZE)) {
-              batchSuccess = registerSampleBatchInETL(batch, user);
-              if (!batchSuccess) {
-                bar.setVisible(false);
-                info.setCaption("An error occured.");
-                UI.getCurrent().setPollInterval(-1);
-                UI.getCurrent().access(ready);
-                return;
-              }
-              ISampleBean last = batch.get(batch.size() - 1);
-              logger.info("waiting for last batch sample to reach openbis");
-              int step = 50;
-              int max = RETRY_UNTIL_SECONDS_PASSED * 1000;
-              while (!openbis.sampleExists(last.getCode()) && max > 0) {
-                try {
-                  Thread.sleep(step);
-                  max -= step;
-                } catch (InterruptedException e) {
-                  e.printStackTrace();
-                }
-              }
-              current++;
-              frac = current * 1.0 / todo;
-              UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
-            }
-          } else {
-            batchSuccess = registerSampleBatchInETL(level, user);
-            if (!batchSuccess) {
-              bar.setVisible(false);
-              info.setCaption("An error occured.");
-              UI.getCurrent().setPollInterval(-1);
-              UI.getCurrent().access(ready);
-              return;
-            }
-          }
-          if (level.size() > 0) {
-            ISampleBean last = level.get(level.size() - 1);
-            logger.info("waiting for last sample to reach openbis");
-            int step = 50;
-            int max = RETRY_UNTIL_SECONDS_PASSED * 1000;
-            while (!openbis.sampleExists(last.getCode()) && max > 0) {
-              try {
-                Thread.sleep(step);
-                max -= step;
-              } catch (InterruptedException e) {
-                e.printStackTrace();
-              }
-            }
-          }
+        List<String> expCodes = new ArrayList<String>();
+        for (RegisterableExperiment e : exps)
+          expCodes.add(e.getCode());
+        if (!awaitRegistration(awaiter, expCodes,
+            MaterializationAwaiter.experimentsOfProject(openbis, space, project))) {
+          fail();
+          return;
         }
         current++;
         frac = current * 1.0 / todo;
+        info.setCaption("Registering samples");
         UI.getCurrent().access(new UpdateProgressBar(bar, info, frac));
 
+        final UI ui = UI.getCurrent();
+        RegistrationPipeline pipeline = new RegistrationPipeline(OpenbisCreationController.this,
+            batcher, awaiter, MaterializationAwaiter.samplesOfProject(openbis, space, project),
+            RETRY_UNTIL_SECONDS_PASSED * 1000, maxParallelBatches,
+            JobScheduler.Instance.getBatchExecutor());
+        RegistrationPipeline.ProgressListener progress =
+            new RegistrationPipeline.ProgressListener() {
+              @Override
+              public void samplesDone(int done, int total) {
+                ui.access(new UpdateProgressBar(bar, info, (2.0 + done * 1.0 / total) / todo));
+              }
+            };
+        success = pipeline.run(tsvSampleHierarchy, user, progress);
+        if (!success) {
+          if (!pipeline.getErrors().isEmpty())
+            errors.add(pipeline.getErrors());
+          fail();
+          return;
+        }
+        UI.getCurrent().access(new UpdateProgressBar(bar, info, 1.0));
+        // samples reach openBIS asynchronously, drop anything fetched while they were arriving
+        ProjectSampleCache.Instance.invalidate(project);
+
+        UI.getCurrent().setPollInterval(-1);
+        UI.getCurrent().access(ready);
+      }
+
+      /**
+       * Waits for registered entities. Entities that are late are logged and registration
+       * continues, unless nothing of this registration showed up for too long.
+       */
+      private boolean awaitRegistration(MaterializationAwaiter awaiter, List<String> codes,
+          MaterializationAwaiter.Probe probe) {
+        if (codes.isEmpty())
+          return true;
+        try {
+          awaiter.await(codes, probe, RETRY_UNTIL_SECONDS_PASSED * 1000);
+        } catch (MaterializationTimeoutException e) {
+          if (e.isStalled()) {
+            String error = "Registration stopped making progress. " + e.getMessage();
+            errors.add(error);
+            logger.error(error);
+            return false;
+          }
+          logger.warn(e.getMessage());
+        }
+        return true;
+      }
+
+      private void fail() {
+        bar.setVisible(false);
+        info.setCaption("An error occured.");
         UI.getCurrent().setPollInterval(-1);
         UI.getCurrent().access(ready);
       }
-    });
-    t.start();
-    UI.getCurrent().setPollInterval(100);
+    };
+    try {
+      JobScheduler.Instance.submit(user, "Registration of " + tsvSampleHierarchy.size()
+          + " sample levels", job, true);
+      UI.getCurrent().setPollInterval(100);
+    } catch (RejectedExecutionException e) {
+      errors.add(e.getMessage());
+      bar.setVisible(false);
+      info.setCaption("An error occured.");
+      UI.getCurrent().access(ready);
+    }
   }
 
   public boolean registerSampleBatchInETL(List<ISampleBean> samples, String user) {
+    return registerSampleBatchInETL(samples, user, getExistingSampleCodes(samples), null);
+  }
+
+  /**
+   * Registers a batch of samples that is part of a larger registration. Samples in the set of
+   * existing codes are skipped, registered samples are added to it, so the set only has to be
+   * fetched once for all batches.
+   * 
+   * @param samples samples to register
+   * @param user user registering the samples
+   * @param existing codes of existing samples, see {@link #getExistingSampleCodes(List)}
+   * @param batcher learns from the latency of the ingestion service, can be null
+   * @return false if the experiment of the samples does not exist
+   */
+  public boolean registerSampleBatchInETL(List<ISampleBean> samples, String user,
+      Set<String> existing, AdaptiveBatcher batcher) {
     String s = null;
     String p = null;
     String e = null;
@@ -406,14 +441,15 @@ public class OpenbisCreationController {
       p = first.getProject();
       e = first.getExperiment();
       if (!openbis.expExists(s, p, e)) {
-        errors = e + " not found in " + p + " (" + s + ") Stopping registration of samples.";
-        logger.error(errors + " This will most likely lead to openbis errors or lost samples!");
+        String error = e + " not found in " + p + " (" + s + ") Stopping registration of samples.";
+        errors.add(error);
+        logger.error(error + " This will most likely lead to openbis errors or lost samples!");
         return false;
       }
     }
     Map<String, Object> params = new HashMap<String, Object>();
     for (ISampleBean sample : samples) {
-      if (openbis.sampleExists(sample.getCode())) {
+      if (existing.contains(sample.getCode())) {
         logger.warn(sample.getCode() + " already exists in " + p
             + " Removing this sample from registration process.");
       } else {
@@ -438,10 +474,54 @@ public class OpenbisCreationController {
       }
     }
     logger.info("Sending batch of new samples to Ingestion Service.");
+    long start = System.currentTimeMillis();
     openbis.ingest("DSS1", "register-sample-batch", params);
+    // only the ingestion itself is timed, checks before depend on the size of the project
+    if (batcher != null && !params.isEmpty())
+      batcher.record(params.size(), System.currentTimeMillis() - start);
+    existing.addAll(params.keySet());
+    ProjectSampleCache.Instance.invalidate(p);
+    IdentifierReservations.Instance.registered(p, params.keySet());
     return true;
   }
 
+  /**
+   * Finds out which of the samples are already registered. Instead of asking openBIS for every
+   * sample, the sample codes of each affected project are fetched once. Sample codes are unique
+   * in openBIS, but codes created by the wizard start with the project code and can only exist in
+   * their own project. Other codes are looked up in all projects with one search per
+   * {@value #CODES_PER_SEARCH} codes.
+   * 
+   * @param samples samples that are about to be registered
+   * @return codes of the samples that already exist in openBIS, can be used by several threads
+   */
+  public Set<String> getExistingSampleCodes(List<ISampleBean> samples) {
+    Set<String> projects = new HashSet<String>();
+    for (ISampleBean sample : samples)
+      projects.add("/" + sample.getSpace() + "/" + sample.getProject());
+    Set<String> existing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    for (String project : projects) {
+      for (Sample s : openbis.getSamplesOfProject(project))
+        existing.add(s.getCode());
+    }
+    List<String> foreign = new ArrayList<String>();
+    for (ISampleBean sample : samples) {
+      String code = sample.getCode();
+      if (!code.startsWith(sample.getProject()) && !existing.contains(code))
+        foreign.add(code);
+    }
+    for (int i = 0; i < foreign.size(); i += CODES_PER_SEARCH) {
+      SearchCriteria sc = new SearchCriteria();
+      sc.setOperator(SearchOperator.MATCH_ANY_CLAUSES);
+      for (String code : foreign.subList(i, Math.min(i + CODES_PER_SEARCH, foreign.size())))
+        sc.addMatchClause(MatchClause.createAttributeMatch(MatchClauseAttribute.CODE, code));
+      for (Sample s : openbis.getOpenbisInfoService().searchForSamples(openbis.getSessionToken(),
+          sc))
+        existing.add(s.getCode());
+    }
+    return existing;
+  }
+
   /**
    * register a single sample in openbis. space, project, experiment and type have to exist in
    * openbis! no parents can be registered in this way!
@@ -457,9 +537,9 @@ public class OpenbisCreationController {
    */
   public boolean registerSample(String code, String space, String project, String exp, String type,
       String user, Map<String, Object> metadata) {
-    errors = "";
+    errors.clear();
     if (openbis.sampleExists(code)) {
-      errors = "Sample " + code + " already exists.";
+      errors.add("Sample " + code + " already exists.");
       return false;
     }
     Map<String, Object> params = new HashMap<String, Object>();
@@ -473,11 +553,13 @@ public class OpenbisCreationController {
     map.put("metadata", metadata);
     params.put(code, map);
     openbis.ingest("DSS1", "register-sample-batch", params);
+    ProjectSampleCache.Instance.invalidate(project);
+    IdentifierReservations.Instance.registered(project, Arrays.asList(code));
     return true;
   }
 
   public String getErrors() {
-    return errors;
+    return String.join(" ", errors);
   }
 
 }
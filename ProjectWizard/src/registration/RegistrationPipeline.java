@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package registration;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import logging.Log4j2Logger;
+import model.ISampleBean;
+
+/**
+ * Registers the sample levels of a project as a pipeline of batches. A sample can be sent as soon
+ * as its parents from this registration are confirmed in openBIS, so batches of one level are sent
+ * concurrently (up to a limit) and children start before the whole previous level is done. Batches
+ * are cut when they are started, using the current size of the {@link AdaptiveBatcher}. They run on
+ * an executor shared by all registrations, so the number of batches sent to openBIS at the same
+ * time stays bounded no matter how many registrations run.
+ *
+ * @author agent
+ *
+ */
+public class RegistrationPipeline {
+
+  logging.Logger logger = new Log4j2Logger(RegistrationPipeline.class);
+
+  private final OpenbisCreationController controller;
+  private final AdaptiveBatcher batcher;
+  private final MaterializationAwaiter awaiter;
+  private final MaterializationAwaiter.Probe probe;
+  private final long batchTimeout;
+  private final int maxParallelBatches;
+  private final ExecutorService executor;
+  private final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<String>();
+
+  /**
+   * Informs about registered samples
+   */
+  public interface ProgressListener {
+    void samplesDone(int done, int total);
+  }
+
+  /**
+   * @param controller controller sending the batches to the ingestion service
+   * @param batcher decides the size of new batches and learns from their latency
+   * @param awaiter awaiter (and its progress limit) used to confirm batches
+   * @param probe probe finding registered samples of the project
+   * @param batchTimeout time a batch may take to show up before it is reported as late
+   * @param maxParallelBatches maximum number of batches of this registration in flight
+   * @param executor shared executor the batches are sent and confirmed on, it is not shut down
+   */
+  public RegistrationPipeline(OpenbisCreationController controller, AdaptiveBatcher batcher,
+      MaterializationAwaiter awaiter, MaterializationAwaiter.Probe probe, long batchTimeout,
+      int maxParallelBatches, ExecutorService executor) {
+    this.controller = controller;
+    this.batcher = batcher;
+    this.awaiter = awaiter;
+    this.probe = probe;
+    this.batchTimeout = batchTimeout;
+    this.maxParallelBatches = Math.max(1, maxParallelBatches);
+    this.executor = executor;
+  }
+
+  /**
+   * Registers all samples, blocking until they are confirmed or one of the batches failed
+   *
+   * @param levels samples of each level of the sample hierarchy, parents before children
+   * @param user user registering the samples
+   * @param listener informed after every confirmed batch, from the calling thread
+   * @return true if all samples were registered
+   */
+  public boolean run(List<List<ISampleBean>> levels, final String user,
+      ProgressListener listener) {
+    Schedule todo = new Schedule(levels);
+    List<ISampleBean> all = new ArrayList<ISampleBean>();
+    for (List<ISampleBean> level : levels)
+      all.addAll(level);
+    int total = all.size();
+    // existing samples are fetched once, batches add the samples they register
+    Set<String> existing = controller.getExistingSampleCodes(all);
+    Map<Future<Boolean>, List<ISampleBean>> running =
+        new HashMap<Future<Boolean>, List<ISampleBean>>();
+    ExecutorCompletionService<Boolean> completion =
+        new ExecutorCompletionService<Boolean>(executor);
+    boolean success = true;
+    int done = 0;
+    try {
+      while (done < total && success) {
+        // start new batches while there is capacity
+        List<ISampleBean> batch = null;
+        while (running.size() < maxParallelBatches
+            && (batch = todo.nextBatch(batcher.getBatchSize(), running.isEmpty())) != null)
+          running.put(completion.submit(register(batch, user, existing)), batch);
+        if (running.isEmpty()) {
+          errors.add("Samples depend on parents that were not registered.");
+          logger.error("Samples depend on parents that were not registered.");
+          return false;
+        }
+        Future<Boolean> finished = completion.take();
+        List<ISampleBean> samples = running.remove(finished);
+        try {
+          success = finished.get();
+        } catch (ExecutionException e) {
+          logger.error("Registration of batch failed.", e.getCause());
+          errors.add("Registration failed: " + e.getCause().getMessage());
+          success = false;
+        }
+        if (success) {
+          todo.confirm(samples);
+          done += samples.size();
+          listener.samplesDone(done, total);
+        }
+      }
+      // let batches that are already sent finish, but don't start new ones
+      for (Future<Boolean> f : running.keySet()) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          logger.error("Registration of batch failed.", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      errors.add("Registration was interrupted.");
+      logger.error("Registration was interrupted.");
+      return false;
+    } finally {
+      // the executor is shared, only stop the batches of this registration
+      for (Future<Boolean> f : running.keySet())
+        f.cancel(true);
+    }
+    logger.info("Registered " + done + " samples. Overall throughput "
+        + String.format("%.1f", batcher.getThroughput()) + " samples/s in "
+        + batcher.getNumberOfBatches() + " batches.");
+    return success;
+  }
+
+  /**
+   * @return errors of this registration, empty if there were none
+   */
+  public String getErrors() {
+    return String.join(" ", errors);
+  }
+
+  /**
+   * Samples that still have to be sent, by level. The parents of each sample are looked at once:
+   * samples become ready when the last of their parents from this registration is confirmed and
+   * are queued in their level, so cutting a batch does not scan the levels again.
+   */
+  private static class Schedule {
+
+    private final List<ArrayDeque<ISampleBean>> ready = new ArrayList<ArrayDeque<ISampleBean>>();
+    // samples of each level that were not cut into a batch yet
+    private final int[] remaining;
+    private final Map<String, Integer> levelOf = new HashMap<String, Integer>();
+    // number of unconfirmed parents of waiting samples
+    private final Map<String, Integer> pending = new HashMap<String, Integer>();
+    private final Map<String, List<ISampleBean>> children =
+        new HashMap<String, List<ISampleBean>>();
+    // levels before this one have been cut completely
+    private int firstLevel = 0;
+
+    Schedule(List<List<ISampleBean>> levels) {
+      remaining = new int[levels.size()];
+      for (int i = 0; i < levels.size(); i++) {
+        ready.add(new ArrayDeque<ISampleBean>());
+        remaining[i] = levels.get(i).size();
+        for (ISampleBean s : levels.get(i))
+          levelOf.put(s.getCode(), i);
+      }
+      for (List<ISampleBean> level : levels) {
+        for (ISampleBean s : level) {
+          // parents that are not part of this registration already exist
+          Set<String> parents = new HashSet<String>(s.fetchParentIDs());
+          parents.retainAll(levelOf.keySet());
+          if (parents.isEmpty())
+            ready.get(levelOf.get(s.getCode())).add(s);
+          else {
+            pending.put(s.getCode(), parents.size());
+            for (String parent : parents) {
+              List<ISampleBean> waiting = children.get(parent);
+              if (waiting == null) {
+                waiting = new ArrayList<ISampleBean>();
+                children.put(parent, waiting);
+              }
+              waiting.add(s);
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Cuts the next batch from the first level that has samples whose parents are confirmed. A
+     * batch smaller than the batch size is only cut if no more samples of that level can become
+     * ready or if nothing else is running.
+     *
+     * @return the next batch or null if nothing can be sent right now
+     */
+    List<ISampleBean> nextBatch(int size, boolean idle) {
+      while (firstLevel < remaining.length && remaining[firstLevel] == 0)
+        firstLevel++;
+      for (int i = firstLevel; i < remaining.length; i++) {
+        ArrayDeque<ISampleBean> level = ready.get(i);
+        if (!level.isEmpty()
+            && (level.size() >= size || level.size() == remaining[i] || idle)) {
+          List<ISampleBean> batch = new ArrayList<ISampleBean>(Math.min(size, level.size()));
+          while (batch.size() < size && !level.isEmpty())
+            batch.add(level.poll());
+          remaining[i] -= batch.size();
+          return batch;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Marks samples as confirmed, children whose parents are all confirmed become ready
+     */
+    void confirm(List<ISampleBean> samples) {
+      for (ISampleBean s : samples) {
+        List<ISampleBean> waiting = children.remove(s.getCode());
+        if (waiting == null)
+          continue;
+        for (ISampleBean child : waiting) {
+          int left = pending.get(child.getCode()) - 1;
+          if (left == 0) {
+            pending.remove(child.getCode());
+            ready.get(levelOf.get(child.getCode())).add(child);
+          } else
+            pending.put(child.getCode(), left);
+        }
+      }
+    }
+  }
+
+  private Callable<Boolean> register(final List<ISampleBean> batch, final String user,
+      final Set<String> existing) {
+    return new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        // the controller keeps the reason of a failed batch
+        if (!controller.registerSampleBatchInETL(batch, user, existing, batcher))
+          return false;
+        List<String> codes = new ArrayList<String>();
+        for (ISampleBean s : batch)
+          codes.add(s.getCode());
+        try {
+          awaiter.await(codes, probe, batchTimeout);
+        } catch (MaterializationTimeoutException e) {
+          if (e.isStalled()) {
+            errors.add("Registration stopped making progress. " + e.getMessage());
+            logger.error(e.getMessage());
+            return false;
+          }
+          // late samples are logged, their children are sent anyway
+          logger.warn(e.getMessage());
+        }
+        return true;
+      }
+    };
+  }
+
+}
@@ -17,7 +17,7 @@ package sorters;
 
 import java.util.Comparator;
 
-import logging.Log4j2Logger;
+import control.BarcodeCodec;
 import model.IBarcodeBean;
 
 /**
@@ -29,7 +29,6 @@ import model.IBarcodeBean;
 public class SampleCodeComparator implements Comparator<IBarcodeBean> {
 
   private static final SampleCodeComparator instance = new SampleCodeComparator();
-  logging.Logger logger = new Log4j2Logger(SampleCodeComparator.class);
 
   public static SampleCodeComparator getInstance() {
     return instance;
@@ -39,29 +38,6 @@ public class SampleCodeComparator implements Comparator<IBarcodeBean> {
 
   @Override
   public int compare(IBarcodeBean o1, IBarcodeBean o2) {
-    String c1 = o1.getCode();
-    String c2 = o2.getCode();
-    if (!c1.startsWith("Q") || c1.contains("ENTITY") || !c2.startsWith("Q")
-        || c2.contains("ENTITY"))
-      return o1.getCode().compareTo(o2.getCode());
-    try {
-      // compares sample codes by projects, ending letters (999A --> 001B) and numbers (001A -->
-      // 002A)
-      int projCompare = c1.substring(0, 5).compareTo(c2.substring(0, 5));
-      int numCompare = c1.substring(5, 8).compareTo(c2.substring(5, 8));
-      int letterCompare = c1.substring(8, 9).compareTo(c2.substring(8, 9));
-      if (projCompare != 0)
-        return projCompare;
-      else {
-        if (letterCompare != 0)
-          return letterCompare;
-        else
-          return numCompare;
-      }
-    } catch (Exception e) {
-      logger.warn("Could not split code " + c1 + " or " + c2
-          + ". Falling back to primitive lexicographical comparison.");
-    }
-    return o1.getCode().compareTo(o2.getCode());
+    return BarcodeCodec.compare(o1.getCode(), o2.getCode());
   }
 }
@@ -40,6 +40,7 @@ import com.vaadin.data.Property.ValueChangeListener;
 import com.vaadin.server.ErrorMessage;
 import com.vaadin.ui.Component;
 import com.vaadin.ui.HorizontalLayout;
+import com.vaadin.ui.Label;
 import com.vaadin.ui.TabSheet;
 import com.vaadin.ui.Table;
 import com.vaadin.ui.TextField;
@@ -67,6 +68,9 @@ public class ConditionInstanceStep implements WizardStep {
   private String stepName;
   private CustomVisibilityComponent previewFrame;
   private Table preview;
+  private Label sampleEstimate;
+  private String sizeViolation;
+  private ValueChangeListener amountListener;
   private Map<Object, Integer> permutations;
 
   private Map<String, TissueInfo> specialTissueInfos;
@@ -92,6 +96,8 @@ public class ConditionInstanceStep implements WizardStep {
     VerticalLayout frame = new VerticalLayout();
     frame.setCaption("Preview of Combinations");
     frame.addComponent(preview);
+    sampleEstimate = new Label();
+    frame.addComponent(sampleEstimate);
     previewFrame = new CustomVisibilityComponent(frame);
     previewFrame.setVisible(false);
 
@@ -112,17 +118,41 @@ public class ConditionInstanceStep implements WizardStep {
   public void destroyTable() {
     previewFrame.setVisible(false);
     preview.removeAllItems();
+    setSampleEstimate("", null);
   }
 
-  public void buildTable(List<String> permutations, String startAmount) {
+  /**
+   * Sets the listener that is notified when the number of samples of a combination is changed in
+   * the preview table
+   */
+  public void setAmountListener(ValueChangeListener l) {
+    amountListener = l;
+  }
+
+  /**
+   * Shows the number of samples that will be created
+   * 
+   * @param estimate description of the number of samples
+   * @param violation description of an exceeded limit of samples, null if there is none. The step
+   *        can't be left in that case.
+   */
+  public void setSampleEstimate(String estimate, String violation) {
+    sampleEstimate.setValue(violation == null ? estimate : (estimate + " " + violation).trim());
+    sizeViolation = violation;
+  }
+
+  public void buildTable(Iterable<String> permutations, String startAmount) {
     preview.removeAllItems();
     int i = 0;
     for (String s : permutations) {
-      s = s.replace("###", " ; ");
       i++;
       Integer itemId = new Integer(i);
       TextField tf = new StandardTextField();
       tf.setValue(startAmount);
+      if (amountListener != null) {
+        tf.setImmediate(true);
+        tf.addValueChangeListener(amountListener);
+      }
       preview.addItem(new Object[] {s, tf}, itemId);
     }
     preview.setPageLength(preview.size());
@@ -181,6 +211,9 @@ public class ConditionInstanceStep implements WizardStep {
       if(error.isEmpty())
         error = "Please add all missing values.";
       Styles.notification("Wrong input", error, NotificationType.ERROR);
+    } else if (!skip && sizeViolation != null) {
+      Styles.notification("Too many samples", sizeViolation, NotificationType.ERROR);
+      return false;
     }
     return skip || valid;
   }
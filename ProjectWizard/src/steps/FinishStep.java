@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import logging.Log4j2Logger;
 import main.ProjectwizardUI;
@@ -28,6 +29,9 @@ import model.AttachmentConfig;
 import org.vaadin.teemu.wizards.Wizard;
 import org.vaadin.teemu.wizards.WizardStep;
 
+import processes.JobScheduler;
+import registration.MaterializationAwaiter;
+import registration.MaterializationTimeoutException;
 import processes.TSVReadyRunnable;
 
 import uicomponents.UploadsPanel;
@@ -52,7 +56,6 @@ import com.vaadin.ui.Button.ClickListener;
 
 import concurrency.UpdateProgressBar;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
-import life.qbic.openbis.openbisclient.OpenBisClient;
 import life.qbic.portal.liferayandvaadinhelpers.main.LiferayAndVaadinUtils;
 import uicomponents.Styles.*;
 
@@ -64,6 +67,8 @@ import uicomponents.Styles.*;
  */
 public class FinishStep implements WizardStep {
 
+  private static final long SAMPLE_WAIT_MILLIS = 5 * 60 * 1000;
+
   private VerticalLayout main;
   private Label summary;
   private VerticalLayout downloads;
@@ -169,11 +174,11 @@ public class FinishStep implements WizardStep {
 
     int entitieNum = 0;
     int samplesNum = 0;
-    List<String> ids = new ArrayList<String>();
+    List<String> codes = new ArrayList<String>();
     for (String exp : samplesByExperiment.keySet()) {
       List<Sample> samps = samplesByExperiment.get(exp);
       for (Sample s : samps)
-        ids.add(s.getIdentifier());
+        codes.add(s.getCode());
       int amount = samps.size();
       String sampleType = samps.get(0).getSampleTypeCode();
       switch (sampleType) {
@@ -204,7 +209,7 @@ public class FinishStep implements WizardStep {
       prepareSpreadsheets(
           new ArrayList<String>(
               Arrays.asList("Q_BIOLOGICAL_ENTITY", "Q_BIOLOGICAL_SAMPLE", "Q_TEST_SAMPLE")),
-          ids.size(), space, proj, openbis);
+          codes, space, proj, openbis);
     } else {
       bar.setVisible(false);
       info.setVisible(false);
@@ -212,7 +217,7 @@ public class FinishStep implements WizardStep {
     }
   }
 
-  private void prepareSpreadsheets(List<String> sampleTypes, int numSamples, String space,
+  private void prepareSpreadsheets(List<String> sampleTypes, final List<String> codes, String space,
       final String project, IOpenBisClient openbis) {
 
     FinishStep layout = this;
@@ -220,20 +225,20 @@ public class FinishStep implements WizardStep {
     info.setVisible(true);
 
     int todo = 3;
-    Thread t = new Thread(new Runnable() {
+    Runnable job = new Runnable() {
       volatile int current = 0;
 
       @Override
       public void run() {
         updateProgressBar(current, todo, bar, info);
 
-        while (openbis.getSamplesOfProject("/" + space + "/" + project).size() < numSamples) {
-          try {
-            Thread.sleep(50);
-          } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-          }
+        // the job occupies a shared worker, so waiting for the samples has to end at some point
+        try {
+          new MaterializationAwaiter(SAMPLE_WAIT_MILLIS).await(codes,
+              MaterializationAwaiter.samplesOfProject(openbis, space, project),
+              SAMPLE_WAIT_MILLIS);
+        } catch (MaterializationTimeoutException e) {
+          logger.warn("Creating spreadsheets of incomplete project. " + e.getMessage());
         }
         Map<String, List<String>> tables = new HashMap<String, List<String>>();
         for (String type : sampleTypes) {
@@ -245,9 +250,17 @@ public class FinishStep implements WizardStep {
         UI.getCurrent().setPollInterval(-1);
         UI.getCurrent().access(new TSVReadyRunnable(layout, tables, project));
       }
-    });
-    t.start();
-    UI.getCurrent().setPollInterval(100);
+    };
+    try {
+      JobScheduler.Instance.submit(getUserID(), "Spreadsheets of " + project, job);
+      UI.getCurrent().setPollInterval(100);
+    } catch (RejectedExecutionException e) {
+      bar.setVisible(false);
+      info.setVisible(false);
+      Styles.notification("Spreadsheets not available",
+          "The server is busy. Please download the spreadsheets later from the project browser.",
+          NotificationType.DEFAULT);
+    }
   }
 
   private void updateProgressBar(int current, int todo, ProgressBar bar, Label info) {
@@ -272,9 +285,7 @@ public class FinishStep implements WizardStep {
     b.setEnabled(true);
   }
 
-  private void initUpload(String space, String project, IOpenBisClient openbis) {
-    if (uploads != null)
-      main.removeComponent(uploads);
+  private String getUserID() {
     String userID = "admin";
     if (LiferayAndVaadinUtils.isLiferayPortlet())
       try {
@@ -283,10 +294,17 @@ public class FinishStep implements WizardStep {
         logger.error(e.getMessage());
         logger.error("Could not contact Liferay for User screen name.");
       }
+    return userID;
+  }
+
+  private void initUpload(String space, String project, IOpenBisClient openbis) {
+    if (uploads != null)
+      main.removeComponent(uploads);
+    String userID = getUserID();
 
     this.uploads = new UploadsPanel(ProjectwizardUI.tmpFolder, space, project,
         new ArrayList<String>(Arrays.asList("Experimental Design")), userID, attachConfig,
-        (OpenBisClient) openbis);// TODO this cast is not safe in dev mode when openbis is down
+        openbis);
     this.uploads.setVisible(false);
     main.addComponent(uploads);
   }
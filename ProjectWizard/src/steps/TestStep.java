@@ -67,6 +67,8 @@ public class TestStep implements WizardStep {
   private DBVocabularies vocabs;
   private boolean containsProteins = false;
   private boolean containsMHCLigands = false;
+  private Label sampleEstimate;
+  private String sizeViolation;
 
   private Wizard wizard;
 
@@ -128,6 +130,10 @@ public class TestStep implements WizardStep {
 
   @Override
   public boolean onAdvance() {
+    if (sizeViolation != null && !noMeasure.getValue()) {
+      Styles.notification("Too many samples", sizeViolation, NotificationType.ERROR);
+      return false;
+    }
     if (techPanel.isValid() || noMeasure.getValue()) {
       if (containsProteins) {
         if (msPanel.isValid()) {
@@ -215,6 +221,8 @@ public class TestStep implements WizardStep {
         new ArrayList<ValueChangeListener>(Arrays.asList(outerProteinListener, proteinListener)),
         mhcLigandListener, refreshPeopleListener);
     main.addComponent(techPanel);
+    sampleEstimate = new Label();
+    main.addComponent(sampleEstimate);
     main.addComponent(new Label("<hr />", Label.CONTENT_XHTML));
     msPanel = new MSOptionComponent(vocabs);
     msPanel.setVisible(false);
@@ -236,6 +244,25 @@ public class TestStep implements WizardStep {
     main.addComponent(mhcLigandPanel);
   }
 
+  /**
+   * Adds a listener that is notified when analytes or their replicates change
+   */
+  public void addSampleNumberListener(ValueChangeListener l) {
+    techPanel.addSampleNumberListener(l);
+  }
+
+  /**
+   * Shows the number of test samples that will be created
+   * 
+   * @param estimate description of the number of samples
+   * @param violation description of an exceeded limit of samples, null if there is none. The step
+   *        can't be left in that case.
+   */
+  public void setSampleEstimate(String estimate, String violation) {
+    sampleEstimate.setValue(violation == null ? estimate : (estimate + " " + violation).trim());
+    sizeViolation = violation;
+  }
+
   public void setTissueExtracts(List<AOpenbisSample> extracts) {
     mhcLigandPanel.setTissueSamples(extracts);
   }
@@ -169,6 +169,17 @@ public class TechChooser extends VerticalLayout {
     this.chooser.removeValueChangeListener(proteinListener);
   }
 
+  public void addSampleNumberListener(ValueChangeListener l) {
+    this.chooser.addValueChangeListener(l);
+    this.replicates.getInnerComponent().setImmediate(true);
+    this.replicates.getInnerComponent().addValueChangeListener(l);
+  }
+
+  public void removeSampleNumberListener(ValueChangeListener l) {
+    this.chooser.removeValueChangeListener(l);
+    this.replicates.getInnerComponent().removeValueChangeListener(l);
+  }
+
   public boolean poolingSet() {
     return pool.getValue();
   }
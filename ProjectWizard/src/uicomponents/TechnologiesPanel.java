@@ -48,6 +48,7 @@ public class TechnologiesPanel extends HorizontalLayout {
   List<ValueChangeListener> proteinListeners;
   ValueChangeListener mhcLigandListener;
   Button.ClickListener refreshPeopleListener;
+  List<ValueChangeListener> sampleNumberListeners = new ArrayList<ValueChangeListener>();
   GridLayout buttonGrid;
   Button add;
   Button remove;
@@ -117,6 +118,15 @@ public class TechnologiesPanel extends HorizontalLayout {
     remove.addClickListener(buttonListener);
   }
 
+  /**
+   * Adds a listener to the analytes and replicates of all current and future analyte choosers
+   */
+  public void addSampleNumberListener(ValueChangeListener l) {
+    sampleNumberListeners.add(l);
+    for (TechChooser c : choosers)
+      c.addSampleNumberListener(l);
+  }
+
   public boolean poolingSet() {
     boolean res = false;
     for (TechChooser c : choosers) {
@@ -142,6 +152,8 @@ public class TechnologiesPanel extends HorizontalLayout {
       c.addProteinListener(l);
     c.addMHCListener(mhcLigandListener);
     c.addRefreshPeopleListener(refreshPeopleListener);
+    for (ValueChangeListener l : sampleNumberListeners)
+      c.addSampleNumberListener(l);
     choosers.add(c);
 
     c.showHelpers();
@@ -162,6 +174,8 @@ public class TechnologiesPanel extends HorizontalLayout {
         last.removeProteinListener(l);
       last.removeMHCListener(mhcLigandListener);
       last.removeRefreshPeopleListener(refreshPeopleListener);
+      for (ValueChangeListener l : sampleNumberListeners)
+        last.removeSampleNumberListener(l);
       choosers.get(size - 2).showHelpers();
     }
   }
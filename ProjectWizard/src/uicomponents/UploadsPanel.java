@@ -5,13 +5,17 @@ import java.io.File;
 import java.io.IOException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import processes.AttachmentMover;
 import processes.MoveUploadsReadyRunnable;
+import registration.MaterializationAwaiter;
+import registration.MaterializationTimeoutException;
 import registration.OpenbisCreationController;
 import logging.Log4j2Logger;
 import uicomponents.Styles;
@@ -35,7 +39,7 @@ import com.vaadin.ui.Upload.FinishedEvent;
 import com.vaadin.ui.Upload.FinishedListener;
 import com.vaadin.ui.themes.ValoTheme;
 
-import life.qbic.openbis.openbisclient.OpenBisClient;
+import life.qbic.openbis.openbisclient.IOpenBisClient;
 import uicomponents.Styles.*;
 
 import com.vaadin.ui.ComboBox;
@@ -47,6 +51,7 @@ public class UploadsPanel extends VerticalLayout {
    * 
    */
   private static final long serialVersionUID = 6971325287434528738L;
+  private static final long COMMIT_TIMEOUT_MILLIS = 10000;
 
   private logging.Logger logger = new Log4j2Logger(UploadsPanel.class);
 
@@ -61,7 +66,7 @@ public class UploadsPanel extends VerticalLayout {
   private Table toUpload;
   private Button commit;
 
-  private OpenBisClient openbis;
+  private IOpenBisClient openbis;
   private OpenbisCreationController openbisCreator;
   private Label info;
   private ProgressBar bar;
@@ -70,7 +75,7 @@ public class UploadsPanel extends VerticalLayout {
   private String tmpFolder;
   
   public UploadsPanel(String tmpFolder, String space, String project, List<String> expOptions,
-      String userID, AttachmentConfig attachConfig, OpenBisClient openbis) {
+      String userID, AttachmentConfig attachConfig, IOpenBisClient openbis) {
     this.openbisCreator = new OpenbisCreationController(openbis);
     this.openbis = openbis;
     this.tmpFolder = tmpFolder;
@@ -121,6 +126,10 @@ public class UploadsPanel extends VerticalLayout {
               getBar(), getLabel(), new MoveUploadsReadyRunnable(view));
         } catch (IOException e) {
           e.printStackTrace();
+        } catch (RejectedExecutionException e) {
+          bar.setVisible(false);
+          commit.setEnabled(true);
+          Styles.notification("Server busy", e.getMessage(), NotificationType.DEFAULT);
         }
       }
     });
@@ -264,34 +273,26 @@ public class UploadsPanel extends VerticalLayout {
       if (!openbis.expExists(space, project, experiment)) {
         openbisCreator.registerExperiment(space, project, "Q_PROJECT_DETAILS", experiment,
             new HashMap<String, Object>(), userID);
-        while (!openbis.expExists(space, project, experiment))
-          try {
-            Thread.sleep(100);
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
       }
-      List<ISampleBean> samples = new ArrayList<ISampleBean>();
-      samples.add(new TSVSampleBean(sample, experiment, project, space, "Q_ATTACHMENT_SAMPLE", "",
-          "", new HashMap<String, Object>()));
-      openbisCreator.registerSampleBatchInETL(samples, userID);
-      double timeoutS = 10.0;
-      while (!openbis.sampleExists(sample))
-        if (timeoutS <= 0) {
-          logger.error("Could not create attachment sample. User has been informed");
-          Styles.notification("Upload failed",
-              "Upload failed, the data management system might be offline. Please contact us if the problem persists.",
-              NotificationType.ERROR);
-          break;
-        } else {
-          try {
-            double sleeptimeMS = 100.0;
-            Thread.sleep((long) sleeptimeMS);
-            timeoutS -= sleeptimeMS / 1000;
-          } catch (InterruptedException e) {
-            e.printStackTrace();
-          }
-        }
+      MaterializationAwaiter awaiter = new MaterializationAwaiter(2 * COMMIT_TIMEOUT_MILLIS);
+      try {
+        awaiter.await(Arrays.asList(experiment),
+            MaterializationAwaiter.experimentsOfProject(openbis, space, project),
+            COMMIT_TIMEOUT_MILLIS);
+        List<ISampleBean> samples = new ArrayList<ISampleBean>();
+        samples.add(new TSVSampleBean(sample, experiment, project, space, "Q_ATTACHMENT_SAMPLE",
+            "", "", new HashMap<String, Object>()));
+        openbisCreator.registerSampleBatchInETL(samples, userID);
+        awaiter.await(Arrays.asList(sample),
+            MaterializationAwaiter.samplesOfProject(openbis, space, project),
+            COMMIT_TIMEOUT_MILLIS);
+      } catch (MaterializationTimeoutException e) {
+        logger.error("Could not create attachment sample. User has been informed. "
+            + e.getMessage());
+        Styles.notification("Upload failed",
+            "Upload failed, the data management system might be offline. Please contact us if the problem persists.",
+            NotificationType.ERROR);
+      }
     }
   }
 
@@ -21,16 +21,19 @@ import java.util.HashMap;
 import java.util.List;
 
 import logging.Log4j2Logger;
+import registration.AdaptiveBatcher;
 import registration.OpenbisCreationController;
 import registration.OpenbisSpaceUserRole;
 import uicomponents.Styles;
 
 import adminviews.MCCView;
 import io.DBVocabularies;
+import io.VocabularyCache;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 
 import com.vaadin.ui.Button;
 import com.vaadin.ui.ComboBox;
+import com.vaadin.ui.Label;
 import com.vaadin.ui.TabSheet;
 import com.vaadin.ui.TextArea;
 import com.vaadin.ui.TextField;
@@ -56,6 +59,9 @@ public class AdminView extends VerticalLayout {
   private TextField space;
   private TextArea users;
   private Button createSpace;
+  private Button reloadVocabularies;
+  private Label registrationStats;
+  private Button refreshStats;
   // mcc patients
   private MCCView addMultiScale;
 
@@ -93,6 +99,22 @@ public class AdminView extends VerticalLayout {
     spaceView.addComponent(createSpace);
     tabs.addTab(spaceView, "Create Space");
 
+    // CACHES
+    VerticalLayout cacheView = new VerticalLayout();
+    cacheView.setSpacing(true);
+    cacheView.setMargin(true);
+    reloadVocabularies = new Button("Reload Vocabularies");
+    cacheView.addComponent(Styles.questionize(reloadVocabularies,
+        "Vocabularies are shared between all users and refreshed periodically. Use this after changing a vocabulary in openBIS.",
+        "Reload Vocabularies"));
+    registrationStats = new Label();
+    registrationStats.setCaption("Sample registration (since server start)");
+    refreshStats = new Button("Refresh");
+    updateRegistrationStats();
+    cacheView.addComponent(registrationStats);
+    cacheView.addComponent(refreshStats);
+    tabs.addTab(cacheView, "Caches");
+
     // METADATA
 //    metadataUpload = new MetadataUploadView(openbis, vocabularies);
 //    tabs.addTab(metadataUpload, "Update Metadata");
@@ -109,7 +131,42 @@ public class AdminView extends VerticalLayout {
     initButtons();
   }
 
+  private void updateRegistrationStats() {
+    AdaptiveBatcher batcher = OpenbisCreationController.getBatcher();
+    registrationStats.setValue(batcher.getNumberOfSamples() + " samples in "
+        + batcher.getNumberOfBatches() + " batches, "
+        + String.format("%.1f", batcher.getThroughput()) + " samples/s. Current batch size: "
+        + batcher.getBatchSize());
+  }
+
   private void initButtons() {
+    refreshStats.addClickListener(new Button.ClickListener() {
+
+      /**
+       * 
+       */
+      private static final long serialVersionUID = -2203845601832734551L;
+
+      @Override
+      public void buttonClick(ClickEvent event) {
+        updateRegistrationStats();
+      }
+    });
+    reloadVocabularies.addClickListener(new Button.ClickListener() {
+
+      /**
+       * 
+       */
+      private static final long serialVersionUID = 4361298725130671932L;
+
+      @Override
+      public void buttonClick(ClickEvent event) {
+        VocabularyCache.Instance.invalidate();
+        Styles.notification("Vocabularies reloaded",
+            "Vocabularies will be fetched from openBIS the next time the wizard is opened.",
+            NotificationType.SUCCESS);
+      }
+    });
     createSpace.addClickListener(new Button.ClickListener() {
 
       /**
@@ -45,6 +45,7 @@ import ch.systemsx.cisd.openbis.generic.shared.api.v1.dto.Sample;
 import ch.systemsx.cisd.openbis.generic.shared.basic.dto.DataTypeCode;
 import control.Functions;
 import io.DBVocabularies;
+import io.ProjectSampleCache;
 import life.qbic.openbis.openbisclient.IOpenBisClient;
 import uicomponents.Styles.*;
 
@@ -298,6 +299,13 @@ public class MetadataUploadView extends VerticalLayout {
     metadata.put("types", types);
     logger.info("Ingesting metadata");
     openbis.ingest("DSS1", "update-sample-metadata", metadata);
+    Set<String> projects = new HashSet<String>();
+    for (String code : codes) {
+      if (code.length() > 4)
+        projects.add(Functions.getProjectPrefix(code));
+    }
+    for (String project : projects)
+      ProjectSampleCache.Instance.invalidate(project);
   }
 
   private Property parseProperty(Property propWithOutVal, String value) {
@@ -374,7 +382,7 @@ public class MetadataUploadView extends VerticalLayout {
       barcodeCol = 0;
     }
     List<Sample> projectSamples =
-        openbis.getSamplesWithParentsAndChildrenOfProjectBySearchService(projectCode);
+        ProjectSampleCache.Instance.getSamplesWithParentsAndChildren(openbis, projectCode);
     codesToSamples = new HashMap<String, Sample>();
     Map<String, List<String>> sampleTypeToAttributes = new HashMap<String, List<String>>();
     Map<String, DataTypeCode> propertyToType = new HashMap<String, DataTypeCode>();
@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * QBiC Project Wizard enables users to create hierarchical experiments including different study
+ * conditions using factorial design. Copyright (C) "2016" Andreas Friedrich
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program. If
+ * not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link BarcodeCodec} gives the same results as the string based implementations it
+ * replaced (Functions.checksum, Functions.incrementSampleCode and SampleCodeComparator), which are
+ * copied below. Every position of a few projects is checked. The project has no test setup, so
+ * this is a plain program:
+ *
+ * <pre>
+ * javac -d /tmp/check src/control/BarcodeCodec.java test/control/BarcodeCodecCheck.java
+ * java -cp /tmp/check control.BarcodeCodecCheck
+ * </pre>
+ *
+ * It prints the number of checks and exits with status 1 if any of them failed.
+ *
+ * @author agent
+ *
+ */
+public class BarcodeCodecCheck {
+
+  private static final String[] PROJECTS = {"QABCD", "Q0000", "QZZZZ", "QA1B2", "QTEST"};
+
+  private static int checks = 0;
+  private static int failures = 0;
+
+  public static void main(String[] args) {
+    List<String> all = new ArrayList<String>();
+    for (String project : PROJECTS) {
+      for (int pos = 0; pos < BarcodeCodec.POSITIONS; pos++) {
+        String code = BarcodeCodec.create(project, pos);
+        all.add(code);
+        checkCode(code, pos);
+        if (pos > 0)
+          checkCompare(all.get(all.size() - 2), code);
+      }
+    }
+    Random random = new Random(42);
+    for (int i = 0; i < 1000000; i++)
+      checkCompare(all.get(random.nextInt(all.size())), all.get(random.nextInt(all.size())));
+    String[] other = {"QABCDENTITY-1", "QABCD", "QAB", "ABCDE001AX", "QABCD001A", "QABCD001AX",
+        "QABCD002A", "QABCDE001AX", "Q", "QABCD-001", "QABCD0X1AB"};
+    for (String c1 : other) {
+      checkValid(c1);
+      for (String c2 : other)
+        checkCompare(c1, c2);
+      for (String c2 : PROJECTS)
+        checkCompare(c1, c2 + "001AX");
+    }
+    checkMalformedIncrement("QABCD0X1AB");
+    checkMalformedIncrement("QABCD 01AB");
+    checkMalformedIncrement("QABCDX01AB");
+
+    System.out.println(checks + " checks, " + failures + " failed");
+    if (failures > 0)
+      System.exit(1);
+  }
+
+  private static void checkCode(String code, int pos) {
+    String withoutChecksum = code.substring(0, 9);
+    check(oldChecksum(withoutChecksum) == BarcodeCodec.checksum(withoutChecksum),
+        "checksum of " + code);
+    check(code.charAt(9) == oldChecksum(withoutChecksum), "checksum created for " + code);
+    checkValid(code);
+    check(BarcodeCodec.hasValidChecksum(code), "valid checksum of " + code);
+    check(BarcodeCodec.position(code) == pos, "position of " + code);
+    long packed = BarcodeCodec.pack(code);
+    check(BarcodeCodec.unpack(packed).equals(code), "unpacked " + code);
+
+    String next = oldIncrement(code);
+    check(next.equals(BarcodeCodec.increment(code)), "increment of " + code);
+    // the old increment turns letter 9 into ':', only valid successors can be packed
+    if (oldIsValid(next))
+      check(BarcodeCodec.incrementPacked(packed) == BarcodeCodec.pack(next),
+          "packed increment of " + code);
+  }
+
+  private static void checkValid(String code) {
+    check(oldIsValid(code) == BarcodeCodec.isValid(code), "validity of " + code);
+  }
+
+  private static void checkCompare(String c1, String c2) {
+    check(oldCompare(c1, c2) == BarcodeCodec.compare(c1, c2), "comparison of " + c1 + " " + c2);
+    if (oldIsValid(c1) && oldIsValid(c2))
+      check(Long.signum(BarcodeCodec.pack(c1) - BarcodeCodec.pack(c2)) == Integer
+          .signum(oldCompare(c1, c2)), "packed comparison of " + c1 + " " + c2);
+  }
+
+  private static void checkMalformedIncrement(String code) {
+    boolean oldFailed = false;
+    try {
+      oldIncrement(code);
+    } catch (NumberFormatException e) {
+      oldFailed = true;
+    }
+    boolean newFailed = false;
+    try {
+      BarcodeCodec.increment(code);
+    } catch (NumberFormatException e) {
+      newFailed = true;
+    }
+    check(oldFailed && newFailed, "increment of malformed " + code);
+  }
+
+  private static void check(boolean ok, String what) {
+    checks++;
+    if (!ok) {
+      failures++;
+      if (failures <= 20)
+        System.out.println("Different result for " + what);
+    }
+  }
+
+  // old implementations, as they were in control.Functions and sorters.SampleCodeComparator
+
+  private static boolean oldIsValid(String code) {
+    String pattern = "Q[A-Z0-9]{4}[0-9]{3}[A-Z0-9]{2}";
+    return code.matches(pattern);
+  }
+
+  private static int oldCompare(String c1, String c2) {
+    if (!c1.startsWith("Q") || c1.contains("ENTITY") || !c2.startsWith("Q")
+        || c2.contains("ENTITY"))
+      return c1.compareTo(c2);
+    try {
+      int projCompare = c1.substring(0, 5).compareTo(c2.substring(0, 5));
+      int numCompare = c1.substring(5, 8).compareTo(c2.substring(5, 8));
+      int letterCompare = c1.substring(8, 9).compareTo(c2.substring(8, 9));
+      if (projCompare != 0)
+        return projCompare;
+      else {
+        if (letterCompare != 0)
+          return letterCompare;
+        else
+          return numCompare;
+      }
+    } catch (Exception e) {
+      // fall back to lexicographical comparison
+    }
+    return c1.compareTo(c2);
+  }
+
+  private static String oldIncrement(String code) {
+    String old = code.substring(5, 8);
+    String num = "";
+    int newNum = Integer.parseInt(old) + 1;
+    char letter = code.charAt(8);
+    if (newNum > 999) {
+      num = "001" + oldIncrementUppercase(letter);
+    } else
+      num = oldCreateCountString(newNum, 3) + letter;
+    String res = code.substring(0, 5) + num;
+    return res + oldChecksum(res);
+  }
+
+  private static char oldIncrementUppercase(char c) {
+    if (c == 'X')
+      return 'A';
+    else {
+      int charValue = c;
+      return (char) (charValue + 1);
+    }
+  }
+
+  private static String oldCreateCountString(int id, int length) {
+    String res = Integer.toString(id);
+    while (res.length() < length) {
+      res = "0" + res;
+    }
+    return res;
+  }
+
+  private static char oldChecksum(String s) {
+    int i = 1;
+    int sum = 0;
+    for (int idx = 0; idx <= s.length() - 1; idx++) {
+      sum += (((int) s.charAt(idx))) * i;
+      i += 1;
+    }
+    return oldMapToChar(sum % 34);
+  }
+
+  private static char oldMapToChar(int i) {
+    i += 48;
+    if (i > 57) {
+      i += 7;
+    }
+    return (char) i;
+  }
+
+}